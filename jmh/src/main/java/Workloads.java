@@ -0,0 +1,273 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+//The operations the JMH benchmarks time, one call each. JMH does not take benchmarks in the
+//default package and a package cannot name the classes in it, so the benchmarks in netsim.jmh
+//get these through Workload.create.
+public class Workloads {
+
+    //Operation of the given name, param is the size it runs at (ignored by frame_encode and frame_decode)
+    public static LongSupplier create(String name, int param) throws Exception {
+        switch (name) {
+            case "frame_encode": return frameEncode();
+            case "frame_decode": return frameDecode();
+            case "router_forward_path": return forwardPath(param);
+            case "router_flow_cache": return flowCache(param);
+            case "switch_handle": return switchHandle(param);
+            case "mac_lookup": return macLookup(param);
+            case "mac_learn": return macLearn(param);
+            case "spf_full": return spfFull(param);
+            case "spf_incremental": return spfIncremental(param);
+            case "forwarding_table": return forwardingTable(param);
+            case "parser_load": return parserLoad(param);
+            case "snapshot_load": return snapshotLoad(param);
+            default: throw new IllegalArgumentException("Unknown workload " + name);
+        }
+    }
+
+    // ===================== FRAMES =====================
+
+    private static final Frame FRAME = new Frame(Frame.FLAG_DATA, "A", "R1", "net1.A", "net3.C", "hello: from A");
+
+    //One encoded frame between position and limit
+    private static ByteBuffer encodedFrame() {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        FRAME.encode(buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static LongSupplier frameEncode() {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        return () -> {
+            buf.clear();
+            FRAME.encode(buf);
+            return buf.position();
+        };
+    }
+
+    private static LongSupplier frameDecode() {
+        ByteBuffer buf = encodedFrame();
+        return () -> Frame.decode(buf).payload.length;
+    }
+
+    // ===================== FORWARDING =====================
+
+    private static final InetSocketAddress EGRESS = new InetSocketAddress("127.0.0.1", 7000);
+    private static final long MY_MAC = Frame.macKey("R1");
+    private static final long HOST_MAC = Frame.macKey("A");
+
+    private static Fib fib(int routes) {
+        List<Fib.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < routes; i++) {
+            entries.add(new Fib.Entry("net" + i, EGRESS, "R2"));
+        }
+        return new Fib(entries);
+    }
+
+    //What Router.forwardFrame does to a data frame: check, look up, rewrite the MACs in place
+    private static LongSupplier forwardPath(int routes) {
+        ByteBuffer buf = encodedFrame();
+        Fib fib = fib(routes);
+        byte[] nextHopMac = Arrays.copyOf("R2".getBytes(StandardCharsets.US_ASCII), Frame.MAC_LEN);
+        return () -> {
+            if (!Frame.isValid(buf) || Frame.macKey(buf, Frame.DST_MAC_OFFSET) != MY_MAC) return 0;
+            Fib.Entry route = fib.lookup(buf, Frame.DST_IP_OFFSET);
+            buf.putLong(Frame.SRC_MAC_OFFSET, MY_MAC);
+            buf.put(Frame.DST_MAC_OFFSET, nextHopMac);
+            long port = route.egress[route.select(buf, 0)].getPort();
+            // Undo so the next call takes the same path
+            buf.putLong(Frame.SRC_MAC_OFFSET, HOST_MAC);
+            buf.putLong(Frame.DST_MAC_OFFSET, MY_MAC);
+            return port;
+        };
+    }
+
+    //The same with the flow already in the cache: one probe, then both MAC fields
+    private static LongSupplier flowCache(int routes) {
+        ByteBuffer buf = encodedFrame();
+        Fib.Entry route = fib(routes).lookup(buf, Frame.DST_IP_OFFSET);
+        FlowCache flows = new FlowCache(4096, new Metrics("bench"));
+        flows.put(buf, 0, 1, Frame.macKey("R2"), route.egress[0], route.mtu[0], false);
+        return () -> {
+            if (!Frame.isValid(buf) || Frame.macKey(buf, Frame.DST_MAC_OFFSET) != MY_MAC) return 0;
+            FlowCache.Entry flow = flows.lookup(buf, 0, 1);
+            buf.putLong(Frame.SRC_MAC_OFFSET, MY_MAC);
+            buf.putLong(Frame.DST_MAC_OFFSET, flow.dstMac);
+            long port = flow.egress.getPort();
+            buf.putLong(Frame.SRC_MAC_OFFSET, HOST_MAC);
+            buf.putLong(Frame.DST_MAC_OFFSET, MY_MAC);
+            return port;
+        };
+    }
+
+    // ===================== MAC TABLE =====================
+
+    private static final InetSocketAddress PORT = new InetSocketAddress("127.0.0.1", 3000);
+
+    //What Switch.handleFrame does: check, learn the source, look up the destination
+    private static LongSupplier switchHandle(int stripes) {
+        ByteBuffer buf = encodedFrame();
+        StripedMacTable table = new StripedMacTable(stripes, 4096, 300_000);
+        table.learn(MY_MAC, EGRESS, System.nanoTime());
+        long now = System.nanoTime();
+        return () -> {
+            if (!Frame.isValid(buf)) return 0;
+            table.learn(Frame.macKey(buf, Frame.SRC_MAC_OFFSET), PORT, now);
+            InetSocketAddress out = table.get(Frame.macKey(buf, Frame.DST_MAC_OFFSET), now);
+            return out == null ? 0 : out.getPort();
+        };
+    }
+
+    private static LongSupplier macLookup(int entries) {
+        MacTable table = new MacTable(entries, 300_000);
+        long[] macs = learnedMacs(table, entries);
+        int[] order = randomOrder(entries);
+        long now = System.nanoTime();
+        int[] next = {0};
+        return () -> {
+            InetSocketAddress out = table.get(macs[order[next[0]++ & 0xFFFF]], now);
+            return out == null ? 0 : 1;
+        };
+    }
+
+    private static LongSupplier macLearn(int entries) {
+        MacTable table = new MacTable(entries, 300_000);
+        long[] macs = learnedMacs(table, entries);
+        int[] order = randomOrder(entries);
+        long now = System.nanoTime();
+        int[] next = {0};
+        return () -> table.learn(macs[order[next[0]++ & 0xFFFF]], PORT, now) ? 1 : 0;
+    }
+
+    private static long[] learnedMacs(MacTable table, int entries) {
+        long[] macs = new long[entries];
+        long now = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            macs[i] = Frame.macKey("H" + i);
+            table.learn(macs[i], PORT, now);
+        }
+        return macs;
+    }
+
+    private static int[] randomOrder(int entries) {
+        Random random = new Random(entries);
+        int[] order = new int[1 << 16];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(entries);
+        }
+        return order;
+    }
+
+    // ===================== SPF =====================
+
+    private static Map<String, Set<String>> topology(int routers) {
+        return TopologyGenerator.randomTopology(routers, 4, new Random(routers));
+    }
+
+    private static LongSupplier spfFull(int routers) {
+        Map<String, Set<String>> topology = topology(routers);
+        return () -> Spf.compute("R0", topology).size();
+    }
+
+    //Spf fed every router's links, rows[r] holding those of R<r>
+    private static Spf spf(Map<String, Set<String>> topology, int[][] rows) {
+        Spf spf = new Spf(NodeIds.intern("R0"));
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = NodeIds.internAll(topology.get("R" + r));
+            spf.update(NodeIds.intern("R" + r), rows[r]);
+        }
+        return spf;
+    }
+
+    //Link flaps as LSA updates: a drops b, b drops a, a restores, b restores
+    private static LongSupplier spfIncremental(int routers) {
+        int[][] rows = new int[routers][];
+        Spf spf = spf(topology(routers), rows);
+
+        Random random = new Random(routers + 1);
+        int flaps = 256;
+        int[][] flapNodes = new int[flaps][];
+        int[][][] flapRows = new int[flaps][][];
+        for (int f = 0; f < flaps; f++) {
+            int a = random.nextInt(routers);
+            int[] aRow = rows[a];
+            int b = Integer.parseInt(NodeIds.name(aRow[random.nextInt(aRow.length)]).substring(1));
+            int aId = NodeIds.intern("R" + a);
+            int bId = NodeIds.intern("R" + b);
+            flapNodes[f] = new int[]{aId, bId, aId, bId};
+            flapRows[f] = new int[][]{without(rows[a], bId), without(rows[b], aId), rows[a], rows[b]};
+        }
+
+        long[] step = {0};
+        return () -> {
+            long s = step[0]++;
+            int f = (int) ((s >> 2) % flaps);
+            int k = (int) (s & 3);
+            return spf.update(flapNodes[f][k], flapRows[f][k]) ? 1 : 0;
+        };
+    }
+
+    //Router.buildForwardingTable with the default -Drouter.maxPaths: every equal cost exit, up to 4
+    private static LongSupplier forwardingTable(int routers) {
+        Spf spf = spf(topology(routers), new int[routers][]);
+        return () -> {
+            long exits = 0;
+            for (Router.ForwardingEntry entry : Router.forwardingTable(spf, 4)) {
+                if (entry != null) exits += entry.exitPortNeighborIds.length;
+            }
+            return exits;
+        };
+    }
+
+    private static int[] without(int[] row, int node) {
+        int[] result = new int[row.length - 1];
+        int k = 0;
+        for (int x : row) {
+            if (x != node) result[k++] = x;
+        }
+        return result;
+    }
+
+    // ===================== CONFIG =====================
+
+    //A generated config, deleted when the benchmark JVM exits
+    private static String config(int routers) throws Exception {
+        Path config = Files.createTempFile("bench-config", "");
+        config.toFile().deleteOnExit();
+        TopologyGenerator.writeConfig(config, topology(routers), 0);
+        return config.toString();
+    }
+
+    private static LongSupplier parserLoad(int routers) throws Exception {
+        String file = config(routers);
+        return () -> {
+            try {
+                return new Parser(file).getNeighborIds("R0").size();
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to parse " + file, e);
+            }
+        };
+    }
+
+    //What a node pays at startup with a compiled config: open the map, look itself up
+    private static LongSupplier snapshotLoad(int routers) throws Exception {
+        String file = config(routers);
+        File snapshot = TopologySnapshot.snapshotFile(file);
+        snapshot.deleteOnExit();
+        TopologySnapshot.compile(new Parser(file), new File(file), snapshot);
+        return () -> {
+            try {
+                return TopologySnapshot.open(snapshot).getNeighborIds("R0").size();
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to open " + snapshot, e);
+            }
+        };
+    }
+}
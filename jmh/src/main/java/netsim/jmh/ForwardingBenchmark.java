@@ -0,0 +1,38 @@
+package netsim.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Router data path on one frame: the Fib lookup path and the flow cache hit that skips it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int routes;
+
+    private LongSupplier forwardPath;
+    private LongSupplier flowCache;
+
+    @Setup
+    public void setup() throws Exception {
+        forwardPath = Workload.create("router_forward_path", routes);
+        flowCache = Workload.create("router_flow_cache", routes);
+    }
+
+    @Benchmark
+    public long routerForwardPath() {
+        return forwardPath.getAsLong();
+    }
+
+    @Benchmark
+    public long routerFlowCache() {
+        return flowCache.getAsLong();
+    }
+}
@@ -0,0 +1,35 @@
+package netsim.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Frame encode and decode, the codec used by Router, Switch and Host
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    private LongSupplier encode;
+    private LongSupplier decode;
+
+    @Setup
+    public void setup() throws Exception {
+        encode = Workload.create("frame_encode", 0);
+        decode = Workload.create("frame_decode", 0);
+    }
+
+    @Benchmark
+    public long frameEncode() {
+        return encode.getAsLong();
+    }
+
+    @Benchmark
+    public long frameDecode() {
+        return decode.getAsLong();
+    }
+}
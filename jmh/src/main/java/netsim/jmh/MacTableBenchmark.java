@@ -0,0 +1,61 @@
+package netsim.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//MacTable lookups and learning at random over tables of several sizes, and the per-frame work
+//of Switch.handleFrame on a table of one stripe (one worker) or 16 (locked, several workers)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacTableBenchmark {
+
+    @State(Scope.Thread)
+    public static class Table {
+
+        @Param({"100", "4096", "65536"})
+        public int entries;
+
+        LongSupplier lookup;
+        LongSupplier learn;
+
+        @Setup
+        public void setup() throws Exception {
+            lookup = Workload.create("mac_lookup", entries);
+            learn = Workload.create("mac_learn", entries);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Switch {
+
+        @Param({"1", "16"})
+        public int stripes;
+
+        LongSupplier handle;
+
+        @Setup
+        public void setup() throws Exception {
+            handle = Workload.create("switch_handle", stripes);
+        }
+    }
+
+    @Benchmark
+    public long macLookup(Table table) {
+        return table.lookup.getAsLong();
+    }
+
+    @Benchmark
+    public long macLearn(Table table) {
+        return table.learn.getAsLong();
+    }
+
+    @Benchmark
+    public long switchHandle(Switch state) {
+        return state.handle.getAsLong();
+    }
+}
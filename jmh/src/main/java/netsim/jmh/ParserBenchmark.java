@@ -0,0 +1,38 @@
+package netsim.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Startup cost of the topology: parsing a generated config, or opening its compiled snapshot
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int routers;
+
+    private LongSupplier parser;
+    private LongSupplier snapshot;
+
+    @Setup
+    public void setup() throws Exception {
+        parser = Workload.create("parser_load", routers);
+        snapshot = Workload.create("snapshot_load", routers);
+    }
+
+    @Benchmark
+    public long parserLoad() {
+        return parser.getAsLong();
+    }
+
+    @Benchmark
+    public long snapshotLoad() {
+        return snapshot.getAsLong();
+    }
+}
@@ -0,0 +1,46 @@
+package netsim.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Route computation on random topologies with four links per router: a full SPF, one incremental
+//update under link flaps, and building the forwarding table from the tree
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpfBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int routers;
+
+    private LongSupplier full;
+    private LongSupplier incremental;
+    private LongSupplier forwardingTable;
+
+    @Setup
+    public void setup() throws Exception {
+        full = Workload.create("spf_full", routers);
+        incremental = Workload.create("spf_incremental", routers);
+        forwardingTable = Workload.create("forwarding_table", routers);
+    }
+
+    @Benchmark
+    public long spfFull() {
+        return full.getAsLong();
+    }
+
+    @Benchmark
+    public long spfIncremental() {
+        return incremental.getAsLong();
+    }
+
+    @Benchmark
+    public long forwardingTable() {
+        return forwardingTable.getAsLong();
+    }
+}
@@ -0,0 +1,16 @@
+package netsim.jmh;
+
+import java.util.function.LongSupplier;
+
+//Gets an operation from the default package Workloads class, which code in a package cannot name
+final class Workload {
+
+    private Workload() {
+    }
+
+    static LongSupplier create(String name, int param) throws Exception {
+        return (LongSupplier) Class.forName("Workloads")
+                .getMethod("create", String.class, int.class)
+                .invoke(null, name, param);
+    }
+}
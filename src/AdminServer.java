@@ -0,0 +1,91 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+//Serves a node's metrics on a local TCP port, one dump per connection:
+//  nc 127.0.0.1 6100     or     curl http://127.0.0.1:6100/
+//The port is the node's own port plus -Dadmin.portOffset (default 100), a negative offset
+//turns the endpoint off. Only listens on the loopback address.
+public class AdminServer {
+
+    private static final int PORT_OFFSET = Integer.getInteger("admin.portOffset", 100);
+
+    private final Metrics metrics;
+    private final ServerSocket server;
+
+    private AdminServer(Metrics metrics, int port) throws Exception {
+        this.metrics = metrics;
+        this.server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+    }
+
+    //Starts the endpoint for a node listening on nodePort, returns null if it is turned off or
+    //the port is taken
+    public static AdminServer start(Metrics metrics, int nodePort) {
+        if (PORT_OFFSET < 0) return null;
+
+        int port = nodePort + PORT_OFFSET;
+        try {
+            AdminServer admin = new AdminServer(metrics, port);
+            Thread t = new Thread(admin::serve, "Admin-" + metrics.getNodeId());
+            t.setDaemon(true);
+            t.start();
+            Log.info("Metrics for " + metrics.getNodeId() + " on tcp://127.0.0.1:" + port);
+            return admin;
+        } catch (Exception e) {
+            Log.warn("Metrics endpoint not started on port " + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void serve() {
+        while (true) {
+            try (Socket client = server.accept()) {
+                client.setSoTimeout(200);
+                boolean http = isHttpRequest(client.getInputStream());
+
+                byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+                OutputStream out = client.getOutputStream();
+                if (http) {
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " +
+                            body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.write(body);
+                out.flush();
+            } catch (Exception e) {
+                Log.warn("Metrics request failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //Plain clients send nothing, so a short read timeout decides which reply to give
+    private static boolean isHttpRequest(InputStream in) throws Exception {
+        byte[] start;
+        try {
+            start = in.readNBytes(4);
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+        if (!new String(start, StandardCharsets.US_ASCII).equals("GET ")) return false;
+
+        // Read the rest of the request headers so closing does not reset the connection
+        try {
+            int last = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                last = (last << 8) | b;
+                if (last == 0x0D0A0D0A) break;
+            }
+        } catch (SocketTimeoutException e) {
+            // Answer anyway
+        }
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+//Bounded pool of reusable direct buffers for the receive path
+//When the pool is empty a new buffer is allocated (a miss), when it is full released buffers are dropped
+public class BufferPool {
+
+    // Replaced by resize(), read once per acquire and release
+    private volatile ArrayBlockingQueue<ByteBuffer> free;
+    private volatile int capacity;
+    private final int bufferSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool(int count, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(count);
+        this.capacity = count;
+        this.bufferSize = bufferSize;
+
+        for (int i = 0; i < count; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    //Changes how many buffers the pool holds, allocating the missing ones or dropping spare ones.
+    //A buffer released while this runs may be dropped too, the next acquire allocates it again.
+    public synchronized void resize(int count) {
+        ArrayBlockingQueue<ByteBuffer> resized = new ArrayBlockingQueue<>(Math.max(1, count));
+        free.drainTo(resized, count);
+        while (resized.size() < count) {
+            resized.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+        free = resized;
+        capacity = count;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        hits.increment();
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize) return;
+        buf.clear();
+        free.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " misses=" + getMisses() + " available=" + available();
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+//Re-reads a config file in the background and hands every new version to a node
+//
+//The file is checked every -Dconfig.pollMs (default 1000, 0 turns watching off) and counts as
+//changed when its length or modification time did. The new version is loaded with Topology.load
+//on the watcher thread, so a big parse never holds up forwarding; a config that does not parse
+//is reported and skipped until the file changes again. One thread serves all watches of a process.
+public final class ConfigWatcher {
+
+    private static final long POLL_MS = Long.getLong("config.pollMs", 1000);
+
+    private static final ScheduledExecutorService poller =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Config-Watcher");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final File file;
+    private final Consumer<Topology> listener;
+    private long length;
+    private long modified;
+
+    private ConfigWatcher(File file, Consumer<Topology> listener) {
+        this.file = file;
+        this.listener = listener;
+        this.length = file.length();
+        this.modified = file.lastModified();
+    }
+
+    //Calls the listener with every version of the file after the current one
+    public static void watch(String configFile, Consumer<Topology> listener) {
+        if (POLL_MS <= 0) return;
+
+        ConfigWatcher watcher = new ConfigWatcher(new File(configFile), listener);
+        poller.scheduleWithFixedDelay(watcher::poll, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        long newLength = file.length();
+        long newModified = file.lastModified();
+        if (newLength == length && newModified == modified) return;
+        length = newLength;
+        modified = newModified;
+
+        Topology topology;
+        try {
+            topology = Topology.load(file.getPath());
+        } catch (Exception e) {
+            Log.error("Config " + file + " changed but could not be read, keeping the old one", e);
+            return;
+        }
+        Log.info("Config " + file + " changed, applying it");
+        try {
+            listener.accept(topology);
+        } catch (RuntimeException e) {
+            Log.error("Failed to apply config " + file, e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Output queue of a Router toward one neighbor, drained by a sender thread of its own
+//
+//Two classes: control frames (LSAs, acks, hellos, probes) always go before data frames, so a data
+//flood cannot hold routing back. Like an empty qdisc, an empty queue is bypassed: a frame offered
+//while nothing waits and nothing is being sent goes out on the offering thread, only a backlog is
+//copied (data into pooled buffers) and left to the sender, so an idle link costs no thread handoff.
+//At most -Drouter.egressQueueFrames data frames wait (default 64, 0 leaves the Router without
+//egress queues), beyond that new ones are dropped (-Drouter.egressDrop=tail, the default) or,
+//with -Drouter.egressDrop=red, dropped early with a probability rising from 0 to
+//-Drouter.redMaxDropPct (default 10) as the average depth goes from -Drouter.redMinPct to
+//-Drouter.redMaxPct of the limit (default 25 and 75), and always above.
+//Control frames are only dropped when -Drouter.controlQueueFrames (default 256) are waiting.
+//-Drouter.linkRateMbps paces the sender to a link rate (default 0, as fast as the socket takes them),
+//and a full socket buffer is retried rather than dropped, so queues build where a real link's would.
+public class EgressQueue {
+
+    public static final int DATA_FRAMES = Integer.getInteger("router.egressQueueFrames", 64);
+    private static final int CONTROL_FRAMES = Integer.getInteger("router.controlQueueFrames", 256);
+    private static final boolean RED = "red".equalsIgnoreCase(System.getProperty("router.egressDrop", "tail"));
+    private static final int RED_MIN_PCT = Integer.getInteger("router.redMinPct", 25);
+    private static final int RED_MAX_PCT = Integer.getInteger("router.redMaxPct", 75);
+    private static final int RED_MAX_DROP_PCT = Integer.getInteger("router.redMaxDropPct", 10);
+    private static final long LINK_RATE_MBPS = Long.getLong("router.linkRateMbps", 0);
+    // How far a paced link may catch up after being idle
+    private static final long BURST_NANOS = 1_000_000;
+    // Wait before retrying a send the socket buffer had no room for
+    private static final long RETRY_NANOS = 100_000;
+
+    private final String neighborId;
+    private final InetSocketAddress target;
+    private final Transport transport;
+    private final BufferPool pool;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> data = new ArrayDeque<>();
+    // Moving average of the data depth seen by arriving frames, weight 1/16
+    private double averageDepth;
+    // A frame is on its way to the socket, from the sender or an offering thread
+    private boolean sending;
+    private boolean senderWaiting;
+    private boolean closed;
+    // When a paced link is free for the next frame
+    private long nextSend = System.nanoTime();
+
+    private final Metrics.Counter packetsOut;
+    private final Metrics.Counter tailDrops;
+    private final Metrics.Counter redDrops;
+    private final Metrics.Counter controlDrops;
+    private final Metrics.Counter sendRetries;
+
+    public EgressQueue(String neighborId, InetSocketAddress target, Transport transport, BufferPool pool,
+                       Metrics metrics, Metrics.Counter packetsOut) {
+        this.neighborId = neighborId;
+        this.target = target;
+        this.transport = transport;
+        this.pool = pool;
+        this.packetsOut = packetsOut;
+        this.tailDrops = metrics.counter("router_egress_tail_drops", "neighbor", neighborId);
+        this.redDrops = metrics.counter("router_egress_red_drops", "neighbor", neighborId);
+        this.controlDrops = metrics.counter("router_egress_control_drops", "neighbor", neighborId);
+        this.sendRetries = metrics.counter("router_egress_send_retries", "neighbor", neighborId);
+        metrics.gauge("router_egress_depth", "neighbor", neighborId, this::dataDepth);
+        metrics.gauge("router_egress_control_depth", "neighbor", neighborId, this::controlDepth);
+    }
+
+    //Starts the sender thread. Frames offered before are sent on the offering thread or wait for it.
+    public void start() {
+        Thread sender = new Thread(this::run, "Router-Egress-" + neighborId);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    //Sends a control frame ahead of all waiting data, false if the control queue is full.
+    //The frame stays the caller's, a copy is queued if it cannot go out right away.
+    public boolean offerControl(ByteBuffer frame) throws Exception {
+        lock.lock();
+        try {
+            if (closed || control.size() >= CONTROL_FRAMES) {
+                controlDrops.increment();
+                return false;
+            }
+            if (!bypass(frame)) {
+                control.add(heapCopy(frame));
+                wakeSender();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendBypassing(frame, true);
+        return true;
+    }
+
+    //Sends a data frame or queues a pooled copy of it, false if it was dropped.
+    //The frame stays the caller's either way.
+    public boolean offerData(ByteBuffer frame) throws Exception {
+        lock.lock();
+        try {
+            int depth = data.size();
+            averageDepth += (depth - averageDepth) / 16;
+            if (closed || depth >= DATA_FRAMES) {
+                tailDrops.increment();
+                return false;
+            }
+            if (RED && earlyDrop()) {
+                redDrops.increment();
+                return false;
+            }
+            if (!bypass(frame)) {
+                data.add(pooledCopy(frame));
+                wakeSender();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendBypassing(frame, false);
+        return true;
+    }
+
+    //Stops the sender, frames still waiting are dropped
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dataDepth() {
+        lock.lock();
+        try {
+            return data.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long controlDepth() {
+        lock.lock();
+        try {
+            return control.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //True if the frame may skip the queue, which is then marked as sending. Called with the lock held.
+    private boolean bypass(ByteBuffer frame) {
+        if (sending || !control.isEmpty() || !data.isEmpty()) return false;
+        long now = System.nanoTime();
+        if (paceWait(now) > 0) return false;
+        paced(frame.remaining(), now);
+        sending = true;
+        return true;
+    }
+
+    //Sends on the offering thread, a frame the socket has no room for goes to the head of its queue
+    //if that is not full, the same limit offerControl and offerData apply
+    private void sendBypassing(ByteBuffer frame, boolean isControl) throws Exception {
+        boolean sent = false;
+        try {
+            sent = transport.send(frame, target);
+        } finally {
+            lock.lock();
+            try {
+                sending = false;
+                if (sent) {
+                    packetsOut.increment();
+                } else if (!closed) {
+                    ArrayDeque<ByteBuffer> queue = isControl ? control : data;
+                    if (queue.size() >= (isControl ? CONTROL_FRAMES : DATA_FRAMES)) {
+                        (isControl ? controlDrops : tailDrops).increment();
+                    } else {
+                        sendRetries.increment();
+                        queue.addFirst(isControl ? heapCopy(frame) : pooledCopy(frame));
+                    }
+                }
+                if (!control.isEmpty() || !data.isEmpty()) wakeSender();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean earlyDrop() {
+        double min = DATA_FRAMES * RED_MIN_PCT / 100.0;
+        double max = DATA_FRAMES * RED_MAX_PCT / 100.0;
+        if (averageDepth < min) return false;
+        if (averageDepth >= max) return true;
+        double p = RED_MAX_DROP_PCT / 100.0 * (averageDepth - min) / (max - min);
+        return ThreadLocalRandom.current().nextDouble() < p;
+    }
+
+    //Nanoseconds until a paced link is free, 0 if it is or the link is not paced
+    private long paceWait(long now) {
+        return LINK_RATE_MBPS > 0 ? Math.max(0, nextSend - now) : 0;
+    }
+
+    private void paced(int length, long now) {
+        if (LINK_RATE_MBPS > 0) {
+            nextSend = Math.max(nextSend, now - BURST_NANOS) + length * 8_000L / LINK_RATE_MBPS;
+        }
+    }
+
+    private void wakeSender() {
+        if (senderWaiting) ready.signal();
+    }
+
+    private ByteBuffer pooledCopy(ByteBuffer frame) {
+        ByteBuffer copy = pool.acquire();
+        copy.put(0, frame, frame.position(), frame.remaining());
+        copy.limit(frame.remaining());
+        return copy;
+    }
+
+    private static ByteBuffer heapCopy(ByteBuffer frame) {
+        byte[] copy = new byte[frame.remaining()];
+        frame.get(frame.position(), copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    private void run() {
+        while (true) {
+            ByteBuffer frame;
+            boolean pooled;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        for (ByteBuffer buf : data) pool.release(buf);
+                        data.clear();
+                        control.clear();
+                        return;
+                    }
+                    long wait = 0;
+                    if (!sending && (!control.isEmpty() || !data.isEmpty())) {
+                        wait = paceWait(System.nanoTime());
+                        if (wait == 0) break;
+                    }
+                    senderWaiting = true;
+                    try {
+                        if (wait > 0) {
+                            ready.awaitNanos(wait);
+                        } else {
+                            ready.await();
+                        }
+                    } catch (InterruptedException e) {
+                        // Nothing to stop but close()
+                    } finally {
+                        senderWaiting = false;
+                    }
+                }
+                pooled = control.isEmpty();
+                frame = pooled ? data.poll() : control.poll();
+                paced(frame.remaining(), System.nanoTime());
+                sending = true;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                send(frame);
+            } catch (Exception e) {
+                if (Log.isDebug()) Log.debug("Failed to send to " + target + ": " + e.getMessage());
+            } finally {
+                if (pooled) pool.release(frame);
+                lock.lock();
+                try {
+                    sending = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    //Retries while the socket buffer is full, the frame is only given up when the queue closes
+    private void send(ByteBuffer frame) throws Exception {
+        while (!transport.send(frame, target)) {
+            sendRetries.increment();
+            LockSupport.parkNanos(RETRY_NANOS);
+            if (isClosed()) return;
+        }
+        packetsOut.increment();
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
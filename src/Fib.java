@@ -0,0 +1,173 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+//Forwarding information base: destination subnet -> resolved egress addresses and next hop MACs
+//
+//Built by the control plane whenever the forwarding table changes and never modified afterwards.
+//Lookups hash the subnet part of the destination IP straight out of the frame bytes, so the
+//forwarding path does one probe into an open addressing table and allocates nothing.
+public class Fib {
+
+    public static class Entry {
+        final byte[] subnet;
+        // Equal cost paths, path i leaves through egress[i] toward nextHopId[i]
+        final InetSocketAddress[] egress;
+        // Next hop MAC fields as they go on the wire, null for local delivery where
+        // the MAC is the host part of the destination IP
+        final byte[][] nextHopMac;
+        final String[] nextHopId;
+        // MTU of the link behind each egress, bigger frames are fragmented
+        final int[] mtu;
+
+        public Entry(String subnet, InetSocketAddress egress, String nextHopId) {
+            this(subnet, egress, nextHopId, Frame.MAX_FRAME);
+        }
+
+        public Entry(String subnet, InetSocketAddress egress, String nextHopId, int mtu) {
+            this(subnet, new InetSocketAddress[]{egress}, nextHopId == null ? null : new String[]{nextHopId},
+                    new int[]{mtu});
+        }
+
+        public Entry(String subnet, InetSocketAddress[] egress, String[] nextHopIds) {
+            this(subnet, egress, nextHopIds, unlimited(egress.length));
+        }
+
+        public Entry(String subnet, InetSocketAddress[] egress, String[] nextHopIds, int[] mtu) {
+            this.subnet = ascii(subnet);
+            this.egress = egress;
+            this.nextHopId = nextHopIds;
+            this.mtu = mtu;
+            if (nextHopIds == null) {
+                this.nextHopMac = null;
+            } else {
+                this.nextHopMac = new byte[nextHopIds.length][];
+                for (int i = 0; i < nextHopIds.length; i++) {
+                    nextHopMac[i] = macField(nextHopIds[i]);
+                }
+            }
+        }
+
+        private static int[] unlimited(int paths) {
+            int[] mtu = new int[paths];
+            Arrays.fill(mtu, Frame.MAX_FRAME);
+            return mtu;
+        }
+
+        public boolean isLocal() {
+            return nextHopMac == null;
+        }
+
+        public int paths() {
+            return egress.length;
+        }
+
+        //Path for the frame starting at an absolute index, chosen by a hash of its source and
+        //destination IP so all frames of one flow take the same path and stay in order
+        public int select(ByteBuffer buf, int start) {
+            if (egress.length == 1) return 0;
+
+            // Both IP fields are adjacent, 32 bytes read as four longs
+            long h = 0;
+            for (int k = 0; k < 2 * Frame.IP_LEN; k += 8) {
+                h = (h ^ buf.getLong(start + Frame.SRC_IP_OFFSET + k)) * 0x9E3779B97F4A7C15L;
+            }
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            return (int) ((h >>> 1) % egress.length);
+        }
+    }
+
+    private final Entry[] table;
+    private final int mask;
+    private final int size;
+
+    public Fib(Collection<Entry> entries) {
+        int capacity = 4;
+        while (capacity < entries.size() * 2) {
+            capacity <<= 1;
+        }
+        this.table = new Entry[capacity];
+        this.mask = capacity - 1;
+        this.size = entries.size();
+
+        for (Entry entry : entries) {
+            int i = hash(entry.subnet, entry.subnet.length) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+    }
+
+    //Finds the entry for the subnet of the IP field at an absolute index ("net2" of "net2.B")
+    public Entry lookup(ByteBuffer buf, int ipIndex) {
+        int len = subnetLength(buf, ipIndex);
+
+        int h = 0;
+        for (int k = 0; k < len; k++) {
+            h = 31 * h + buf.get(ipIndex + k);
+        }
+
+        int i = spread(h) & mask;
+        Entry entry;
+        while ((entry = table[i]) != null) {
+            if (matches(entry.subnet, buf, ipIndex, len)) {
+                return entry;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //Length of the subnet part of an IP field, up to the first '.' or padding
+    static int subnetLength(ByteBuffer buf, int ipIndex) {
+        int len = 0;
+        while (len < Frame.IP_LEN) {
+            byte b = buf.get(ipIndex + len);
+            if (b == '.' || b == 0) break;
+            len++;
+        }
+        return len;
+    }
+
+    private static boolean matches(byte[] subnet, ByteBuffer buf, int index, int len) {
+        if (subnet.length != len) return false;
+        for (int k = 0; k < len; k++) {
+            if (subnet[k] != buf.get(index + k)) return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int len) {
+        int h = 0;
+        for (int k = 0; k < len; k++) {
+            h = 31 * h + bytes[k];
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int k = 0; k < bytes.length; k++) {
+            bytes[k] = (byte) s.charAt(k);
+        }
+        return bytes;
+    }
+
+    private static byte[] macField(String mac) {
+        ByteBuffer field = ByteBuffer.allocate(Frame.MAC_LEN);
+        Frame.writeField(field, 0, Frame.MAC_LEN, mac);
+        return field.array();
+    }
+}
@@ -0,0 +1,98 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+//Forwarding decisions of recent flows, keyed by the source and destination IP fields of a frame
+//
+//Direct mapped with -Drouter.flowCacheSize slots (default 4096, rounded down to a power of two):
+//a flow landing on a taken slot replaces the entry there. An entry holds what the Fib lookup, the
+//path choice and the host part of a local destination resolved to, so a frame of a known flow
+//costs one probe and writing the two MAC fields. Entries carry the generation of the forwarding
+//snapshot they were resolved from and are stale once a newer one is published. The workers share
+//it without locks: entries are immutable and a slot is replaced with a single reference store.
+public class FlowCache {
+
+    public static class Entry {
+        // The source and destination IP fields, 32 bytes read as four longs
+        final long ip0, ip1, ip2, ip3;
+        final long generation;
+        // Destination MAC field as it goes on the wire
+        final long dstMac;
+        final InetSocketAddress egress;
+        final int mtu;
+        final boolean local;
+
+        Entry(ByteBuffer buf, int start, long generation, long dstMac, InetSocketAddress egress, int mtu,
+              boolean local) {
+            int ip = start + Frame.SRC_IP_OFFSET;
+            this.ip0 = buf.getLong(ip);
+            this.ip1 = buf.getLong(ip + 8);
+            this.ip2 = buf.getLong(ip + 16);
+            this.ip3 = buf.getLong(ip + 24);
+            this.generation = generation;
+            this.dstMac = dstMac;
+            this.egress = egress;
+            this.mtu = mtu;
+            this.local = local;
+        }
+
+        public boolean isLocal() {
+            return local;
+        }
+    }
+
+    private final Entry[] slots;
+    private final int mask;
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+
+    public FlowCache(Metrics metrics) {
+        this(Integer.getInteger("router.flowCacheSize", 4096), metrics);
+    }
+
+    public FlowCache(int size, Metrics metrics) {
+        int capacity = Integer.highestOneBit(Math.max(1, size));
+        this.slots = new Entry[capacity];
+        this.mask = capacity - 1;
+        this.hits = metrics.counter("router_flow_cache_hits");
+        this.misses = metrics.counter("router_flow_cache_misses");
+    }
+
+    //Entry of the frame's flow resolved from this generation, null if it has to be resolved again
+    public Entry lookup(ByteBuffer buf, int start, long generation) {
+        int ip = start + Frame.SRC_IP_OFFSET;
+        long ip0 = buf.getLong(ip);
+        long ip1 = buf.getLong(ip + 8);
+        long ip2 = buf.getLong(ip + 16);
+        long ip3 = buf.getLong(ip + 24);
+
+        Entry entry = slots[slot(ip0, ip1, ip2, ip3)];
+        if (entry != null && entry.generation == generation
+                && entry.ip0 == ip0 && entry.ip1 == ip1 && entry.ip2 == ip2 && entry.ip3 == ip3) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    //Remembers how the frame's flow was resolved and returns the new entry
+    public Entry put(ByteBuffer buf, int start, long generation, long dstMac, InetSocketAddress egress, int mtu,
+                     boolean local) {
+        Entry entry = new Entry(buf, start, generation, dstMac, egress, mtu, local);
+        slots[slot(entry.ip0, entry.ip1, entry.ip2, entry.ip3)] = entry;
+        return entry;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    private int slot(long ip0, long ip1, long ip2, long ip3) {
+        long h = ip0 * 0x9E3779B97F4A7C15L;
+        h = (h ^ ip1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ip2) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ip3) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,235 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Binary frame codec shared by Router, Switch and Host
+//
+//Every frame starts with a fixed size header, strings are ASCII and padded with 0 bytes:
+//  version(1) flag(1) srcMAC(8) dstMAC(8) srcIP(16) dstIP(16)
+//  datagramId(4) fragmentOffset(4) datagramLength(4) payloadLength(4)
+//followed by payloadLength bytes of payload. The payload is opaque, so it may contain any byte.
+//
+//A frame that does not fit the MTU of its link is split into fragments that carry the bytes
+//[fragmentOffset, fragmentOffset + payloadLength) of the datagramLength byte payload numbered
+//datagramId by its source IP. Every fragment but the last is a multiple of FRAGMENT_UNIT bytes,
+//so a fragment can be split again further along. An unfragmented frame has fragmentOffset 0
+//and datagramLength equal to payloadLength.
+public class Frame {
+
+    public static final byte VERSION = 2;
+
+    // Flags
+    public static final byte FLAG_DATA = 0;
+    public static final byte FLAG_LSA = 1;
+    public static final byte FLAG_LSA_ACK = 2;
+    public static final byte FLAG_DB_REQUEST = 3;
+    // Link RTT measurement between routers, the payload is the prober's nanoTime (8)
+    public static final byte FLAG_PROBE = 4;
+    public static final byte FLAG_PROBE_REPLY = 5;
+    // Router neighbor liveness, no payload
+    public static final byte FLAG_HELLO = 6;
+
+    // Field widths
+    public static final int MAC_LEN = 8;
+    public static final int IP_LEN = 16;
+
+    // Field offsets from the start of the frame
+    public static final int VERSION_OFFSET = 0;
+    public static final int FLAG_OFFSET = 1;
+    public static final int SRC_MAC_OFFSET = 2;
+    public static final int DST_MAC_OFFSET = SRC_MAC_OFFSET + MAC_LEN;
+    public static final int SRC_IP_OFFSET = DST_MAC_OFFSET + MAC_LEN;
+    public static final int DST_IP_OFFSET = SRC_IP_OFFSET + IP_LEN;
+    public static final int DATAGRAM_ID_OFFSET = DST_IP_OFFSET + IP_LEN;
+    public static final int FRAGMENT_OFFSET_OFFSET = DATAGRAM_ID_OFFSET + 4;
+    public static final int DATAGRAM_LENGTH_OFFSET = FRAGMENT_OFFSET_OFFSET + 4;
+    public static final int LENGTH_OFFSET = DATAGRAM_LENGTH_OFFSET + 4;
+    public static final int HEADER_LEN = LENGTH_OFFSET + 4;
+
+    public static final int FRAGMENT_UNIT = 8;
+    // Largest UDP payload, so the largest frame and MTU there can be
+    public static final int MAX_FRAME = 65507;
+
+    final byte flag;
+    final String srcMac;
+    final String dstMac;
+    final String srcIp;
+    final String dstIp;
+    final int datagramId;
+    final int fragmentOffset;
+    final int datagramLength;
+    final byte[] payload;
+
+    public Frame(byte flag, String srcMac, String dstMac,
+                 String srcIp, String dstIp, byte[] payload) {
+        this(flag, srcMac, dstMac, srcIp, dstIp, 0, 0, payload.length, payload);
+    }
+
+    public Frame(byte flag, String srcMac, String dstMac, String srcIp, String dstIp,
+                 int datagramId, int fragmentOffset, int datagramLength, byte[] payload) {
+        this.flag = flag;
+        this.srcMac = srcMac;
+        this.dstMac = dstMac;
+        this.srcIp = srcIp;
+        this.dstIp = dstIp;
+        this.datagramId = datagramId;
+        this.fragmentOffset = fragmentOffset;
+        this.datagramLength = datagramLength;
+        this.payload = payload;
+    }
+
+    public Frame(byte flag, String srcMac, String dstMac,
+                 String srcIp, String dstIp, String message) {
+        this(flag, srcMac, dstMac, srcIp, dstIp, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean isFragment() {
+        return fragmentOffset != 0 || datagramLength != payload.length;
+    }
+
+    public String payloadString() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public int encodedLength() {
+        return HEADER_LEN + payload.length;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        encode(buf);
+        return buf.array();
+    }
+
+    //Writes this frame at the buffer position and advances it
+    public void encode(ByteBuffer buf) {
+        encode(buf, flag, srcMac, dstMac, srcIp, dstIp, datagramId, fragmentOffset, datagramLength,
+                payload, 0, payload.length);
+    }
+
+    //Unfragmented frame carrying len bytes of the payload
+    public static void encode(ByteBuffer buf, byte flag,
+                              String srcMac, String dstMac,
+                              String srcIp, String dstIp,
+                              byte[] payload, int off, int len) {
+        encode(buf, flag, srcMac, dstMac, srcIp, dstIp, 0, 0, len, payload, off, len);
+    }
+
+    public static void encode(ByteBuffer buf, byte flag,
+                              String srcMac, String dstMac,
+                              String srcIp, String dstIp,
+                              int datagramId, int fragmentOffset, int datagramLength,
+                              byte[] payload, int off, int len) {
+        int start = buf.position();
+        if (buf.remaining() < HEADER_LEN + len) {
+            throw new IllegalArgumentException("Frame does not fit in buffer: " + (HEADER_LEN + len) + " bytes");
+        }
+
+        buf.put(start + VERSION_OFFSET, VERSION);
+        buf.put(start + FLAG_OFFSET, flag);
+        writeField(buf, start + SRC_MAC_OFFSET, MAC_LEN, srcMac);
+        writeField(buf, start + DST_MAC_OFFSET, MAC_LEN, dstMac);
+        writeField(buf, start + SRC_IP_OFFSET, IP_LEN, srcIp);
+        writeField(buf, start + DST_IP_OFFSET, IP_LEN, dstIp);
+        buf.putInt(start + DATAGRAM_ID_OFFSET, datagramId);
+        buf.putInt(start + FRAGMENT_OFFSET_OFFSET, fragmentOffset);
+        buf.putInt(start + DATAGRAM_LENGTH_OFFSET, datagramLength);
+        buf.putInt(start + LENGTH_OFFSET, len);
+
+        buf.position(start + HEADER_LEN);
+        buf.put(payload, off, len);
+    }
+
+    //Decodes the frame between position and limit, returns null if it is malformed
+    public static Frame decode(ByteBuffer buf) {
+        int start = buf.position();
+        if (!isValid(buf)) {
+            return null;
+        }
+
+        int len = payloadLength(buf);
+        byte[] payload = new byte[len];
+        buf.get(start + HEADER_LEN, payload);
+
+        return new Frame(
+                buf.get(start + FLAG_OFFSET),
+                readField(buf, start + SRC_MAC_OFFSET, MAC_LEN),
+                readField(buf, start + DST_MAC_OFFSET, MAC_LEN),
+                readField(buf, start + SRC_IP_OFFSET, IP_LEN),
+                readField(buf, start + DST_IP_OFFSET, IP_LEN),
+                buf.getInt(start + DATAGRAM_ID_OFFSET),
+                buf.getInt(start + FRAGMENT_OFFSET_OFFSET),
+                buf.getInt(start + DATAGRAM_LENGTH_OFFSET),
+                payload);
+    }
+
+    //Checks version, length and fragment fields of the frame between position and limit
+    public static boolean isValid(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < HEADER_LEN) return false;
+        if (buf.get(start + VERSION_OFFSET) != VERSION) return false;
+
+        int len = payloadLength(buf);
+        if (len < 0 || len > buf.remaining() - HEADER_LEN) return false;
+
+        int fragmentOffset = buf.getInt(start + FRAGMENT_OFFSET_OFFSET);
+        int datagramLength = buf.getInt(start + DATAGRAM_LENGTH_OFFSET);
+        return fragmentOffset >= 0 && fragmentOffset % FRAGMENT_UNIT == 0
+                && datagramLength >= 0 && (long) fragmentOffset + len <= datagramLength;
+    }
+
+    public static int payloadLength(ByteBuffer buf) {
+        return buf.getInt(buf.position() + LENGTH_OFFSET);
+    }
+
+    //Packs the 8 byte MAC field at an absolute index into a long, so it can be compared without a String
+    public static long macKey(ByteBuffer buf, int index) {
+        return buf.getLong(index);
+    }
+
+    public static long macKey(String mac) {
+        ByteBuffer buf = ByteBuffer.allocate(MAC_LEN);
+        writeField(buf, 0, MAC_LEN, mac);
+        return buf.getLong(0);
+    }
+
+    //Turns a MAC key back into the device ID, only needed for printing
+    public static String macString(long key) {
+        ByteBuffer buf = ByteBuffer.allocate(MAC_LEN);
+        buf.putLong(0, key);
+        return readField(buf, 0, MAC_LEN);
+    }
+
+    //Reads a 0 padded ASCII field at an absolute index
+    static String readField(ByteBuffer buf, int index, int width) {
+        int len = 0;
+        while (len < width && buf.get(index + len) != 0) {
+            len++;
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buf.get(index + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    //Writes a 0 padded ASCII field at an absolute index
+    static void writeField(ByteBuffer buf, int index, int width, String value) {
+        if (value == null) value = "";
+        int len = value.length();
+        if (len > width) {
+            throw new IllegalArgumentException("Field too long (max " + width + "): " + value);
+        }
+        for (int i = 0; i < width; i++) {
+            buf.put(index + i, i < len ? (byte) value.charAt(i) : 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (isFragment()) {
+            return flag + ":" + srcMac + ":" + dstMac + ":" + srcIp + ":" + dstIp + ":fragment " + datagramId +
+                    " [" + fragmentOffset + "+" + payload.length + "/" + datagramLength + "]";
+        }
+        return flag + ":" + srcMac + ":" + dstMac + ":" + srcIp + ":" + dstIp + ":" + payloadString();
+    }
+}
@@ -1,53 +1,153 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class Host {
 
     private final String hostId;
     private final int listenPort;
-    private final InetSocketAddress neighborSwitch;
-    private final DatagramSocket socket;
-    private final String myVirtualIp;
-    private final String gatewayVirtualIp;
-    private final String gatewayMac;
-
+    private final Transport transport;
+    // Replaced by reconfigure() while the host keeps sending
+    private volatile InetSocketAddress neighborSwitch;
+    private volatile String myVirtualIp;
+    private volatile String gatewayVirtualIp;
+    private volatile String gatewayMac;
+    // Largest frame the link to the switch carries, bigger payloads go out in fragments
+    private volatile int mtu;
+    private final AtomicInteger nextDatagramId = new AtomicInteger();
+
+    //Counters served by AdminServer
+    private final Metrics metrics;
+    private final Metrics.Counter framesSent;
+    private final Metrics.Counter framesDropped;
+    private final Metrics.Counter framesReceived;
+    private final Metrics.Counter malformedFrames;
+    private final Metrics.Counter notForMe;
+    private final Metrics.Counter fragmentsSent;
+    private final Metrics.Counter fragmentsDropped;
+
+    //Load frames received from other hosts, summarized once none came for -Dload.idleMs
+    private final LoadSink loadSink;
+    private final long loadIdleNanos = Long.getLong("load.idleMs", 1000) * 1_000_000;
+
+    //Fragments of datagrams sent to us, only touched by the receive thread
+    private final Reassembler reassembler;
 
     public Host(String hostId, int listenPort, InetSocketAddress neighborSwitch, String myVirtualIp, String gatewayVirtualIp) throws Exception {
+        this(hostId, new UdpTransport(new InetSocketAddress(listenPort)), neighborSwitch, myVirtualIp, gatewayVirtualIp);
+    }
+
+    public Host(String hostId, Transport transport, InetSocketAddress neighborSwitch, String myVirtualIp, String gatewayVirtualIp) {
+        this(hostId, transport, neighborSwitch, myVirtualIp, gatewayVirtualIp, Topology.DEFAULT_MTU);
+    }
+
+    public Host(String hostId, Transport transport, InetSocketAddress neighborSwitch, String myVirtualIp,
+                String gatewayVirtualIp, int mtu) {
         this.hostId = hostId;
-        this.listenPort = listenPort;
+        this.listenPort = transport.getLocalAddress().getPort();
         this.neighborSwitch = neighborSwitch;
-        this.socket = new DatagramSocket(listenPort);
+        this.transport = transport;
         this.myVirtualIp = myVirtualIp;
         this.gatewayVirtualIp = gatewayVirtualIp;
         this.gatewayMac = extractIdFromVirtualIp(gatewayVirtualIp);
-
-        System.out.println("[DEBUG] gatewayMac = " + gatewayMac);
-
-        System.out.println("Host " + hostId + " listening on " + listenPort);
-        System.out.println("Connected switch: " + neighborSwitch.getAddress().getHostAddress() +
+        this.mtu = mtu;
+
+        this.metrics = new Metrics(hostId);
+        this.framesSent = metrics.counter("host_frames_sent");
+        this.framesDropped = metrics.counter("host_frames_dropped");
+        this.framesReceived = metrics.counter("host_frames_received");
+        this.malformedFrames = metrics.counter("host_malformed_frames");
+        this.notForMe = metrics.counter("host_frames_not_for_me");
+        this.fragmentsSent = metrics.counter("host_fragments_sent");
+        this.fragmentsDropped = metrics.counter("host_fragments_dropped");
+        metrics.gauge("log_dropped", Log::getDropped);
+        this.loadSink = new LoadSink(metrics);
+        this.reassembler = new Reassembler(metrics);
+
+        Log.debug("gatewayMac = " + gatewayMac);
+
+        Log.info("Host " + hostId + " listening on " + listenPort);
+        Log.info("Connected switch: " + neighborSwitch.getAddress().getHostAddress() +
                 ":" + neighborSwitch.getPort());
-        System.out.println("My virtual IP: " + myVirtualIp);
-        System.out.println("Gateway virtual IP: " + gatewayVirtualIp + "(gateway MAC=" + gatewayMac + ")");
+        Log.info("My virtual IP: " + myVirtualIp);
+        Log.info("Gateway virtual IP: " + gatewayVirtualIp + "(gateway MAC=" + gatewayMac + ")");
+        Log.info("Link MTU: " + mtu);
     }
 
     public void start() {
-        //Receiver thread
+        startReceiver();
+        sendLoop();
+    }
+
+    //Receiver thread
+    public void startReceiver() {
         Thread rx = new Thread(this::receiveLoop, "Host-RX-" + hostId);
         rx.setDaemon(true);
         rx.start();
+    }
 
-        sendLoop();
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public String getVirtualIp() {
+        return myVirtualIp;
+    }
+
+    //Takes over the switch, virtual IP and gateway a changed config gives this host.
+    //A config that leaves the host without them is ignored.
+    public void reconfigure(Topology topology) {
+        List<InetSocketAddress> neighbors = topology.getNeighbors(hostId);
+        String virtualIp = topology.getHostVirtualIp(hostId);
+        String gateway = topology.getGatewayVirtualIp(hostId);
+        if (neighbors.isEmpty() || virtualIp == null || gateway == null) {
+            Log.warn("Config leaves host " + hostId + " without a switch, virtual IP or gateway, ignored");
+            return;
+        }
+        int linkMtu = linkMtu(topology, hostId);
+        if (neighbors.get(0).equals(neighborSwitch) && virtualIp.equals(myVirtualIp)
+                && gateway.equals(gatewayVirtualIp) && linkMtu == mtu) {
+            return;
+        }
+
+        neighborSwitch = neighbors.get(0);
+        myVirtualIp = virtualIp;
+        gatewayVirtualIp = gateway;
+        gatewayMac = extractIdFromVirtualIp(gateway);
+        mtu = linkMtu;
+        Log.info("Host " + hostId + " reconfigured: switch " + neighborSwitch.getAddress().getHostAddress() +
+                ":" + neighborSwitch.getPort() + ", virtual IP " + virtualIp + ", gateway " + gateway +
+                ", MTU " + linkMtu);
+    }
+
+    //Per-sender results of the load frames received so far
+    public String getLoadSummary() {
+        return loadSink.summary();
+    }
+
+    //Prints the load summary unless nothing arrived since the last one
+    private void printLoadSummary() {
+        if (loadSink.isIdle(System.nanoTime(), 0)) {
+            Log.info(loadSink.summary().stripTrailing());
+        }
     }
 
     private void sendLoop() {
         Scanner sc = new Scanner(System.in);
         while (true) {
             try {
+                // Prompts stay on stdout, they are the user interface rather than logging
                 System.out.print("Enter destination virtual IP (or 'quit'): ");
+                if (!sc.hasNextLine()) break;
                 String dstVip = sc.nextLine();
                 if (dstVip == null) continue;
                 dstVip = dstVip.trim();
@@ -55,36 +155,108 @@ public class Host {
                 if (dstVip.isEmpty()) continue;
 
                 System.out.print("Message: ");
+                if (!sc.hasNextLine()) break;
                 String msg = sc.nextLine();
                 if (msg == null) msg = "";
                 msg = msg.trim();
 
-                if (msg.contains(":")) msg = msg.replace(":", "_");
+                send(dstVip, msg);
 
-                String mySubnet = myVirtualIp.split("\\.")[0];
-                String dstSubnet = dstVip.split("\\.")[0];
+            } catch (Exception e) {
+                Log.error("Failed to send frame", e);
+            }
+        }
+        sc.close();
+
+    }
 
-                String dstMac;
-                if (mySubnet.equals(dstSubnet)) {
-                    // Same subnet: send directly to destination host MAC (ID)
-                    dstMac = extractIdFromVirtualIp(dstVip);
-                    System.out.println("[DEBUG] Same subnet (" + mySubnet + "): dstMAC=" + dstMac);
-                } else {
-                    // Different subnet: send to gateway router MAC
-                    dstMac = gatewayMac;
-                    System.out.println("[DEBUG] Different subnet (" + mySubnet + " -> " + dstSubnet + "): dstMAC=" + dstMac);
+    //Sends load frames of payloadSize bytes round robin to the given virtual IPs for durationMs,
+    //at rate frames per second in total or as fast as possible if rate is 0. Returns the frames sent.
+    public long runLoad(List<String> dstVips, long rate, long durationMs, int payloadSize) throws Exception {
+        byte[] payload = new byte[Math.max(LoadSink.HEADER_LEN, payloadSize)];
+        int runId = ThreadLocalRandom.current().nextInt();
+        long[] nextSeq = new long[dstVips.size()];
+
+        long start = System.nanoTime();
+        long end = start + durationMs * 1_000_000;
+        long sent = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) break;
+            if (rate > 0) {
+                // Paced from the start time, so a late wakeup is made up by the next frames
+                long due = start + (long) (sent * 1e9 / rate);
+                if (now < due) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
                 }
+            }
+
+            int d = (int) (sent % dstVips.size());
+            LoadSink.writeHeader(payload, runId, nextSeq[d]++, System.nanoTime());
+            send(dstVips.get(d), payload);
+            sent++;
+        }
 
-                String frame = "0:" + hostId + ":" + dstMac + ":" + myVirtualIp + ":" + dstVip + ":" + msg;
-                System.out.println("[DEBUG SEND] " + frame);
-                sendFrameToSwitch(frame);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Log.info(String.format("[LOAD] %s sent %d frames of %d bytes to %s in %.1f s (%.0f frames/s)",
+                myVirtualIp, sent, payload.length, dstVips, seconds, sent / seconds));
+        return sent;
+    }
 
-            } catch (Exception e) {
-                e.printStackTrace();
+    //Sends a message to a virtual IP, through the gateway unless it is on our own subnet
+    public void send(String dstVip, String msg) throws Exception {
+        send(dstVip, msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void send(String dstVip, byte[] payload) throws Exception {
+        String myVirtualIp = this.myVirtualIp;
+        String mySubnet = myVirtualIp.split("\\.")[0];
+        String dstSubnet = dstVip.split("\\.")[0];
+
+        String dstMac;
+        if (mySubnet.equals(dstSubnet)) {
+            // Same subnet: send directly to destination host MAC (ID)
+            dstMac = extractIdFromVirtualIp(dstVip);
+            if (Log.isDebug()) Log.debug("Same subnet (" + mySubnet + "): dstMAC=" + dstMac);
+        } else {
+            // Different subnet: send to gateway router MAC
+            dstMac = gatewayMac;
+            if (Log.isDebug()) {
+                Log.debug("Different subnet (" + mySubnet + " -> " + dstSubnet + "): dstMAC=" + dstMac);
             }
         }
-        sc.close();
 
+        int datagramId = nextDatagramId.incrementAndGet();
+        int mtu = this.mtu;
+        if (Frame.HEADER_LEN + payload.length <= mtu) {
+            Frame frame = new Frame(Frame.FLAG_DATA, hostId, dstMac, myVirtualIp, dstVip,
+                    datagramId, 0, payload.length, payload);
+            if (Log.isDebug()) Log.debug("SEND " + frame);
+            sendFrameToSwitch(frame);
+            return;
+        }
+
+        // Too big for the link: fragments of whole FRAGMENT_UNITs, encoded one after the other.
+        // Once one is dropped the datagram cannot be reassembled, so the rest is not sent.
+        int piece = (mtu - Frame.HEADER_LEN) / Frame.FRAGMENT_UNIT * Frame.FRAGMENT_UNIT;
+        ByteBuffer buf = ByteBuffer.allocate(Frame.HEADER_LEN + piece);
+        for (int off = 0; off < payload.length; off += piece) {
+            buf.clear();
+            Frame.encode(buf, Frame.FLAG_DATA, hostId, dstMac, myVirtualIp, dstVip,
+                    datagramId, off, payload.length, payload, off, Math.min(piece, payload.length - off));
+            buf.flip();
+            if (!transport.send(buf, neighborSwitch)) {
+                fragmentsDropped.increment();
+                if (Log.isDebug()) Log.debug("Send buffer full, dropped datagram " + datagramId + " to " + dstVip);
+                return;
+            }
+            fragmentsSent.increment();
+        }
+        framesSent.increment();
+        if (Log.isDebug()) {
+            Log.debug("SEND " + payload.length + " bytes to " + dstVip + " in fragments of " + piece);
+        }
     }
 
     private static String getSubnet(String virtualIp) {
@@ -94,60 +266,77 @@ public class Host {
     }
 
     private void receiveLoop() {
-        byte[] buffer = new byte[4096];
+        // Room for any frame, whatever the MTU of the link
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_FRAME);
         while (true) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                buffer.clear();
+                // At least 1 ms, a timeout of 0 would turn the loop into a busy spin
+                if (transport.receive(buffer, Math.max(1, loadIdleNanos / 1_000_000)) == null) {
+                    long now = System.nanoTime();
+                    reassembler.expire(now);
+                    if (loadSink.isIdle(now, loadIdleNanos)) {
+                        printLoadSummary();
+                    }
+                    continue;
+                }
 
-                String frame = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).trim();
+                Frame frame = Frame.decode(buffer);
+                if (frame == null) {
+                    malformedFrames.increment();
+                    if (Log.isDebug()) Log.debug("Malformed frame (" + buffer.remaining() + " bytes)");
+                    continue;
+                }
                 handleIncomingFrame(frame);
 
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Failed to handle frame", e);
             }
         }
     }
 
-    private void handleIncomingFrame(String frame) {
-        //Frame format: srcMAC:dstMAC:srcVIP:dstVIP:message
-        String[] parts = frame.split(":", 6);
-
-        if (parts.length < 6) {
-            System.out.println("[DEBUG] Malformed frame: " + frame);
-            return;
-        }
-
-        String flag = parts[0];
-        String srcMac = parts[1];
-        String dstMac = parts[2];
-        String srcVip = parts[3];
-        String dstVip = parts[4];
-        String payload = parts[5];
+    private void handleIncomingFrame(Frame frame) {
+        String srcMac = frame.srcMac;
+        String dstMac = frame.dstMac;
+        String srcVip = frame.srcIp;
+        String dstVip = frame.dstIp;
 
-        if (flag.equals("1")) {
+        if (frame.flag != Frame.FLAG_DATA) {
             // Ignore routing packets
             return;
         }
 
         if (dstMac.equals(hostId)) {
-            System.out.println("\n[RECEIVED @ " + hostId + "] from " + srcMac +
-                    " (" + srcVip + " -> " + dstVip + "): " + payload);
+            long now = System.nanoTime();
+            byte[] payload = frame.payload;
+            if (frame.isFragment()) {
+                payload = reassembler.add(frame, now);
+                if (payload == null) return;
+            }
+
+            framesReceived.increment();
+            if (LoadSink.isLoad(payload)) {
+                loadSink.record(srcVip, payload, now);
+                return;
+            }
+            Log.info("[RECEIVED @ " + hostId + "] from " + srcMac +
+                    " (" + srcVip + " -> " + dstVip + "): " + new String(payload, StandardCharsets.UTF_8));
         } else {
-            System.out.println("\n[DEBUG] Flooded frame not for me. dstMAC=" + dstMac + ", myMAC=" + hostId +
-                    " | srcMAC=" + srcMac + " srcVIP=" + srcVip + " dstVIP=" + dstVip);
-        }
-            System.out.println();
+            notForMe.increment();
+            if (Log.isDebug()) {
+                Log.debug("Flooded frame not for me. dstMAC=" + dstMac + ", myMAC=" + hostId +
+                        " | srcMAC=" + srcMac + " srcVIP=" + srcVip + " dstVIP=" + dstVip);
+            }
         }
+    }
 
-    private void sendFrameToSwitch(String frame) throws Exception {
-        byte[] data = frame.getBytes(StandardCharsets.UTF_8);
-        DatagramPacket packet = new DatagramPacket(
-                data,
-                data.length,
-                neighborSwitch.getAddress(),
-                neighborSwitch.getPort());
-        socket.send(packet);
+    private void sendFrameToSwitch(Frame frame) throws Exception {
+        if (!transport.send(ByteBuffer.wrap(frame.toBytes()), neighborSwitch)) {
+            framesDropped.increment();
+            if (Log.isDebug()) Log.debug("Send buffer full, dropped frame to " + frame.dstIp);
+            return;
+        }
+        framesSent.increment();
     }
 
     private static String extractIdFromVirtualIp(String virtualIp) {
@@ -158,47 +347,84 @@ public class Host {
 
     public static void main(String[] args) throws Exception {
 
-        if (args.length != 1) {
-            System.out.println("Usage: java Host <HostID>");
+        // Interactive by default, or a load generator or sink:
+        //   java Host A load net3.C [net2.B ...]   sends for -Dload.seconds (default 10)
+        //                                          at -Dload.rate frames/s (default 0, as fast as possible)
+        //                                          with -Dload.payload bytes per frame (default 64)
+        //   java Host C sink                       only receives and prints load summaries
+        boolean load = args.length >= 3 && args[1].equals("load");
+        boolean sink = args.length == 2 && args[1].equals("sink");
+        if (args.length != 1 && !load && !sink) {
+            System.out.println("Usage: java Host <HostID> [sink | load <dstVIP>...]");
             return;
         }
 
         String hostId = args[0];
 
-        Parser parser = new Parser("Config");
+        Topology topology = Topology.load("Config");
 
         // Get  IP and port
-        InetSocketAddress myAddr = parser.getAddress(hostId);
+        InetSocketAddress myAddr = topology.getAddress(hostId);
         if (myAddr == null) {
             System.out.println("Host ID not found in config: " + hostId);
             return;
         }
 
+        Host host;
+        try {
+            host = fromConfig(topology, hostId, new UdpTransport(myAddr));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        AdminServer.start(host.getMetrics(), myAddr.getPort());
+        ConfigWatcher.watch("Config", host::reconfigure);
+
+        if (load) {
+            host.startReceiver();
+            host.runLoad(List.of(args).subList(2, args.length),
+                    Long.getLong("load.rate", 0),
+                    Long.getLong("load.seconds", 10) * 1000,
+                    Integer.getInteger("load.payload", 64));
+        } else if (sink) {
+            Runtime.getRuntime().addShutdownHook(new Thread(host::printLoadSummary));
+            host.receiveLoop();
+        } else {
+            host.start();
+        }
+    }
+
+    //Host wired to its switch and gateway as the config says, not started yet
+    public static Host fromConfig(Topology topology, String hostId, Transport transport) {
+
         // Get neighbor switch
-        List<InetSocketAddress> neighbors = parser.getNeighbors(hostId);
+        List<InetSocketAddress> neighbors = topology.getNeighbors(hostId);
         if (neighbors.isEmpty()) {
-            System.out.println("No neighbor switch found for host: " + hostId);
-            return;
+            throw new IllegalArgumentException("No neighbor switch found for host: " + hostId);
         }
         InetSocketAddress neighborSwitch = neighbors.get(0);
 
-        // Get virtual IP and gateway from parser
-        String myVirtualIp = parser.getHostVirtualIp(hostId);
-        String gatewayVirtualIp = parser.getGatewayVirtualIp(hostId);
+        // Get virtual IP and gateway from the config
+        String myVirtualIp = topology.getHostVirtualIp(hostId);
+        String gatewayVirtualIp = topology.getGatewayVirtualIp(hostId);
 
         if (myVirtualIp == null || gatewayVirtualIp == null) {
-            System.out.println("Virtual IP or Gateway not configured for host: " + hostId);
-            return;
+            throw new IllegalArgumentException("Virtual IP or Gateway not configured for host: " + hostId);
         }
 
-        Host host = new Host(
+        return new Host(
                 hostId,
-                myAddr.getPort(),
+                transport,
                 neighborSwitch,
                 myVirtualIp,
-                gatewayVirtualIp
+                gatewayVirtualIp,
+                linkMtu(topology, hostId)
         );
+    }
 
-        host.start();
+    //MTU of the link to the host's switch
+    private static int linkMtu(Topology topology, String hostId) {
+        List<String> neighborIds = topology.getNeighborIds(hostId);
+        return neighborIds.isEmpty() ? Topology.DEFAULT_MTU : topology.getLinkMtu(hostId, neighborIds.get(0));
     }
 }
\ No newline at end of file
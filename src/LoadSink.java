@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Receive side of the Host load mode: per-source throughput, loss, reordering and latency
+//
+//Load frames are ordinary data frames whose payload starts with
+//  magic(4) runId(4) seq(8) sentNanos(8)
+//and is padded to the requested size. Every run of a sender picks a new runId and starts at seq 0.
+//sentNanos is the sender's System.nanoTime(), which only gives a meaningful one-way latency when
+//sender and receiver run on the same machine, as all nodes of a Config on 127.0.0.1 do.
+public class LoadSink {
+
+    public static final int MAGIC = 0x4C4F4144; // "LOAD"
+    public static final int HEADER_LEN = 24;
+
+    //One sender's frames since its first one arrived
+    private static class Stream {
+        final int runId;
+        long received;
+        long bytes;
+        long nextSeq;   // highest sequence number seen + 1
+        long reordered; // arrived after a higher sequence number
+        long firstArrival;
+        long lastArrival;
+        final Metrics.Histogram latency = new Metrics.Histogram(Metrics.MICROS_BUCKETS);
+
+        Stream(int runId, long firstArrival) {
+            this.runId = runId;
+            this.firstArrival = firstArrival;
+        }
+    }
+
+    // Source virtual IP -> stream, only touched by the receive thread and summary()
+    private final Map<String, Stream> streams = new LinkedHashMap<>();
+    private final Metrics.Counter loadReceived;
+    private final Metrics.Counter loadReordered;
+    private final Metrics.Histogram loadLatency;
+
+    private volatile long lastArrival;
+    private volatile long lastSummary;
+
+    public LoadSink(Metrics metrics) {
+        this.loadReceived = metrics.counter("host_load_received");
+        this.loadReordered = metrics.counter("host_load_reordered");
+        this.loadLatency = metrics.histogram("host_load_latency_us", Metrics.MICROS_BUCKETS);
+    }
+
+    //Fills in the load header at the start of a payload of at least HEADER_LEN bytes
+    public static void writeHeader(byte[] payload, int runId, long seq, long sentNanos) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, runId);
+        buf.putLong(8, seq);
+        buf.putLong(16, sentNanos);
+    }
+
+    public static boolean isLoad(byte[] payload) {
+        return payload.length >= HEADER_LEN && ByteBuffer.wrap(payload).getInt(0) == MAGIC;
+    }
+
+    public synchronized void record(String srcIp, byte[] payload, long now) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        int runId = buf.getInt(4);
+        long seq = buf.getLong(8);
+        long latencyMicros = Math.max(0, (now - buf.getLong(16)) / 1000);
+
+        Stream s = streams.get(srcIp);
+        if (s == null || s.runId != runId) {
+            // First frame of a new run from this sender, the old one is forgotten
+            s = new Stream(runId, now);
+            streams.put(srcIp, s);
+        }
+        s.received++;
+        s.bytes += payload.length;
+        s.lastArrival = now;
+        if (seq < s.nextSeq) {
+            s.reordered++;
+            loadReordered.increment();
+        } else {
+            s.nextSeq = seq + 1;
+        }
+        s.latency.record(latencyMicros);
+
+        loadReceived.increment();
+        loadLatency.record(latencyMicros);
+        lastArrival = now;
+    }
+
+    //True once load frames have arrived and none came for idleNanos, at most once per burst
+    public boolean isIdle(long now, long idleNanos) {
+        long last = lastArrival;
+        return last != 0 && last != lastSummary && now - last >= idleNanos;
+    }
+
+    //One line per sender, marks everything so far as reported
+    public synchronized String summary() {
+        lastSummary = lastArrival;
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stream> e : streams.entrySet()) {
+            Stream s = e.getValue();
+            double seconds = Math.max(1, s.lastArrival - s.firstArrival) / 1e9;
+            long lost = Math.max(0, s.nextSeq - s.received);
+            sb.append(String.format("[LOAD] from %s: %d frames, %.0f frames/s, %.2f Mbit/s, " +
+                            "%d lost (%.2f%%), %d reordered, latency p50=%s p99=%s p99.9=%s us%n",
+                    e.getKey(), s.received, s.received / seconds, s.bytes * 8 / seconds / 1e6,
+                    lost, 100.0 * lost / Math.max(1, s.nextSeq), s.reordered,
+                    bound(s.latency.percentile(50)), bound(s.latency.percentile(99)),
+                    bound(s.latency.percentile(99.9))));
+        }
+        return sb.toString();
+    }
+
+    //Percentiles are bucket upper bounds, the overflow bucket has none
+    private static String bound(long micros) {
+        if (micros != Long.MAX_VALUE) return Long.toString(micros);
+        return ">" + Metrics.MICROS_BUCKETS[Metrics.MICROS_BUCKETS.length - 1];
+    }
+}
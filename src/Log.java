@@ -0,0 +1,171 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Shared logging for Host, Switch and Router.
+//Callers never touch stdout: messages go into a bounded lock-free ring buffer and a background
+//thread writes them out in batches. When the buffer is full the message is dropped and counted
+//instead of making the caller wait.
+//The level is fixed at startup with -Dlog.level (DEBUG, INFO, WARN, ERROR, default INFO) and the
+//buffer size with -Dlog.bufferSize. Build debug messages inside "if (Log.isDebug())" so they
+//cost nothing when debug is off.
+public final class Log {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    private static final String[] PREFIX = {"[DEBUG] ", "", "[WARN] ", "[ERROR] "};
+
+    private static final int LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+
+    // Multi-producer single-consumer ring: a slot can be written when its sequence equals the
+    // producer position and read when it equals the consumer position + 1
+    private static final int CAPACITY =
+            Integer.highestOneBit(Math.max(2, Integer.getInteger("log.bufferSize", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0;   // only touched by the drain thread
+
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported = 0;
+
+    private static final PrintWriter out =
+            new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+
+        Thread drain = new Thread(Log::drainLoop, "Log-Drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "Log-Shutdown"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isDebug() {
+        return LEVEL <= DEBUG;
+    }
+
+    public static boolean isEnabled(int level) {
+        return LEVEL <= level;
+    }
+
+    public static void debug(String message) {
+        if (LEVEL <= DEBUG) offer(DEBUG, message);
+    }
+
+    public static void info(String message) {
+        if (LEVEL <= INFO) offer(INFO, message);
+    }
+
+    public static void warn(String message) {
+        if (LEVEL <= WARN) offer(WARN, message);
+    }
+
+    public static void error(String message) {
+        if (LEVEL <= ERROR) offer(ERROR, message);
+    }
+
+    public static void error(String message, Throwable t) {
+        if (LEVEL > ERROR) return;
+        StringWriter trace = new StringWriter();
+        t.printStackTrace(new PrintWriter(trace));
+        offer(ERROR, message + ": " + trace.toString().stripTrailing());
+    }
+
+    //Messages thrown away because the buffer was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void offer(int level, String message) {
+        String line = PREFIX[level] + message;
+
+        long pos = tail.get();
+        while (true) {
+            int i = (int) pos & MASK;
+            long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(i, line);
+                    sequences.set(i, pos + 1);
+                    return;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The drain thread has not freed this slot yet
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private static String poll() {
+        int i = (int) head & MASK;
+        if (sequences.get(i) != head + 1) return null;
+
+        String line = slots.get(i);
+        slots.set(i, null);
+        sequences.set(i, head + CAPACITY);
+        head++;
+        return line;
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    //Writes out everything queued so far, returns false if there was nothing
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        String line;
+        while ((line = poll()) != null) {
+            out.println(line);
+            wrote = true;
+        }
+
+        long lost = dropped.sum();
+        if (lost != droppedReported) {
+            out.println(PREFIX[WARN] + "log buffer full, dropped " + (lost - droppedReported) + " messages");
+            droppedReported = lost;
+            wrote = true;
+        }
+
+        if (wrote) out.flush();
+        return wrote;
+    }
+
+    private static int parseLevel(String name) {
+        switch (name.trim().toUpperCase()) {
+            case "DEBUG":
+                return DEBUG;
+            case "WARN":
+                return WARN;
+            case "ERROR":
+                return ERROR;
+            default:
+                return INFO;
+        }
+    }
+}
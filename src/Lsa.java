@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+//Link state advertisement and its binary codec
+//
+//Layout, strings are one length byte followed by ASCII:
+//  routerId seq(4) age(2) checksum(4) subnetCount(2) subnets... neighborCount(2) (neighbor cost(2))...
+//The cost is what the originator measured for the link to that neighbor, see Router.linkCost().
+//The checksum is a CRC32 over everything except age and checksum, so aging an LSA in transit
+//does not change it.
+public class Lsa {
+
+    final String routerId;
+    final int seq;
+    final int age;
+    final List<String> subnets;
+    final List<String> neighbors;
+    // Link cost to each neighbor, same order as neighbors
+    final int[] costs;
+    final int checksum;
+
+    //Advertisement with every link costing 1
+    public Lsa(String routerId, int seq, int age, List<String> subnets, List<String> neighbors) {
+        this(routerId, seq, age, subnets, neighbors, unitCosts(neighbors.size()));
+    }
+
+    public Lsa(String routerId, int seq, int age, List<String> subnets, List<String> neighbors, int[] costs) {
+        if (costs.length != neighbors.size()) {
+            throw new IllegalArgumentException("Got " + costs.length + " costs for " + neighbors.size() + " neighbors");
+        }
+        this.routerId = routerId;
+        this.seq = seq;
+        this.age = age;
+        this.subnets = Collections.unmodifiableList(new ArrayList<>(subnets));
+        this.neighbors = Collections.unmodifiableList(new ArrayList<>(neighbors));
+        this.costs = costs.clone();
+        for (int i = 0; i < this.costs.length; i++) {
+            this.costs[i] = Math.max(1, Math.min(this.costs[i], 0xFFFF));
+        }
+        this.checksum = computeChecksum();
+    }
+
+    private Lsa(String routerId, int seq, int age, List<String> subnets, List<String> neighbors, int[] costs,
+                int checksum) {
+        this.routerId = routerId;
+        this.seq = seq;
+        this.age = age;
+        this.subnets = Collections.unmodifiableList(subnets);
+        this.neighbors = Collections.unmodifiableList(neighbors);
+        this.costs = costs;
+        this.checksum = checksum;
+    }
+
+    //Same advertisement with a different age, used when flooding a stored copy
+    public Lsa withAge(int newAge) {
+        return new Lsa(routerId, seq, Math.min(newAge, 0xFFFF), subnets, neighbors, costs, checksum);
+    }
+
+    public boolean isNewerThan(Lsa other) {
+        return other == null || seq > other.seq;
+    }
+
+    public int encodedLength() {
+        int len = 1 + routerId.length() + 4 + 2 + 4 + 2 + 2;
+        for (String s : subnets) len += 1 + s.length();
+        for (String s : neighbors) len += 1 + s.length() + 2;
+        return len;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        encode(buf);
+        return buf.array();
+    }
+
+    public void encode(ByteBuffer buf) {
+        putString(buf, routerId);
+        buf.putInt(seq);
+        buf.putShort((short) age);
+        buf.putInt(checksum);
+        putList(buf, subnets);
+        putNeighbors(buf);
+    }
+
+    //Reads one LSA at the buffer position, returns null if it is malformed or the checksum does not match
+    public static Lsa decode(ByteBuffer buf) {
+        try {
+            String routerId = getString(buf);
+            int seq = buf.getInt();
+            int age = buf.getShort() & 0xFFFF;
+            int checksum = buf.getInt();
+            List<String> subnets = getList(buf);
+
+            int count = buf.getShort() & 0xFFFF;
+            List<String> neighbors = new ArrayList<>(count);
+            int[] costs = new int[count];
+            for (int i = 0; i < count; i++) {
+                neighbors.add(getString(buf));
+                costs[i] = buf.getShort() & 0xFFFF;
+            }
+
+            Lsa lsa = new Lsa(routerId, seq, age, subnets, neighbors, costs, checksum);
+            return lsa.computeChecksum() == checksum ? lsa : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private int computeChecksum() {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        putString(buf, routerId);
+        buf.putInt(seq);
+        putList(buf, subnets);
+        putNeighbors(buf);
+        crc.update(buf.array(), 0, buf.position());
+        return (int) crc.getValue();
+    }
+
+    static void putString(ByteBuffer buf, String s) {
+        if (s.length() > 255) {
+            throw new IllegalArgumentException("String too long: " + s);
+        }
+        buf.put((byte) s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf.put((byte) s.charAt(i));
+        }
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = buf.get() & 0xFF;
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (buf.get() & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static void putList(ByteBuffer buf, List<String> list) {
+        buf.putShort((short) list.size());
+        for (String s : list) {
+            putString(buf, s);
+        }
+    }
+
+    private void putNeighbors(ByteBuffer buf) {
+        buf.putShort((short) neighbors.size());
+        for (int i = 0; i < neighbors.size(); i++) {
+            putString(buf, neighbors.get(i));
+            buf.putShort((short) costs[i]);
+        }
+    }
+
+    private static int[] unitCosts(int n) {
+        int[] costs = new int[n];
+        Arrays.fill(costs, 1);
+        return costs;
+    }
+
+    private static List<String> getList(ByteBuffer buf) {
+        int count = buf.getShort() & 0xFFFF;
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(getString(buf));
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return routerId + " seq=" + seq + " age=" + age +
+                " subnets=" + subnets + " neighbors=" + neighbors + " costs=" + Arrays.toString(costs);
+    }
+}
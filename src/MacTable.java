@@ -0,0 +1,227 @@
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+//Switch table keyed by MAC key (see Frame.macKey), bounded to a fixed number of entries.
+//Entries live in preallocated arrays and are linked in least-recently-learned order, the
+//hash index points into them with open addressing (0 = free slot, otherwise entry + 1).
+//Learning an address again moves it to the front of the list, so when the table is full the
+//entry at the back is evicted, and entries older than the max age are dropped from the back too.
+//Not thread safe, the switch shares it between its workers through StripedMacTable.
+public class MacTable {
+
+    private static final int NONE = -1;
+
+    private final int capacity;
+    private final long maxAgeNanos;
+
+    // Entries, indexed by entry number
+    private final long[] keys;
+    private final InetSocketAddress[] ports;
+    private final long[] lastSeen;
+    private final int[] prev;
+    private final int[] next;
+
+    // Hash index over the entries
+    private final int[] index;
+    private final int mask;
+
+    private int head = NONE;    // most recently learned
+    private int tail = NONE;    // least recently learned
+    private int freeList;
+    private int size = 0;
+
+    private long evictions = 0;
+    private long expirations = 0;
+    private long moves = 0;
+
+    public MacTable(int capacity, long maxAgeMs) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.capacity = capacity;
+        this.maxAgeNanos = maxAgeMs * 1_000_000L;
+        keys = new long[capacity];
+        ports = new InetSocketAddress[capacity];
+        lastSeen = new long[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+
+        // At most half full
+        int tableSize = Integer.highestOneBit(capacity) * 4;
+        index = new int[tableSize];
+        mask = tableSize - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            next[i] = i + 1 < capacity ? i + 1 : NONE;
+        }
+        freeList = 0;
+    }
+
+    //Port a MAC was learned on, or null if it is unknown or has aged out
+    public InetSocketAddress get(long mac, long nowNanos) {
+        int e = find(mac);
+        if (e == NONE) return null;
+        if (nowNanos - lastSeen[e] > maxAgeNanos) {
+            remove(e);
+            expirations++;
+            return null;
+        }
+        return ports[e];
+    }
+
+    //Records that a MAC was seen on a port, refreshing its age and LRU position.
+    //Returns true if the MAC is new or has moved to a different port.
+    public boolean learn(long mac, InetSocketAddress port, long nowNanos) {
+        expire(nowNanos);
+
+        int e = find(mac);
+        if (e != NONE) {
+            lastSeen[e] = nowNanos;
+            if (e != head) {
+                unlink(e);
+                linkFirst(e);
+            }
+            if (!ports[e].equals(port)) {
+                ports[e] = port;
+                moves++;
+                return true;
+            }
+            return false;
+        }
+
+        if (size == capacity) {
+            remove(tail);
+            evictions++;
+        }
+
+        e = freeList;
+        freeList = next[e];
+        keys[e] = mac;
+        ports[e] = port;
+        lastSeen[e] = nowNanos;
+        linkFirst(e);
+        insertIndex(mac, e);
+        size++;
+        return true;
+    }
+
+    //Drops every entry not learned within the max age, oldest first
+    public void expire(long nowNanos) {
+        while (tail != NONE && nowNanos - lastSeen[tail] > maxAgeNanos) {
+            remove(tail);
+            expirations++;
+        }
+    }
+
+    //Drops every entry learned on one of the ports, returns how many were dropped
+    public int removePorts(Set<InetSocketAddress> removed) {
+        int count = 0;
+        int e = tail;
+        while (e != NONE) {
+            int newer = prev[e];
+            if (removed.contains(ports[e])) {
+                remove(e);
+                count++;
+            }
+            e = newer;
+        }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public long getMoves() {
+        return moves;
+    }
+
+    @Override
+    public String toString() {
+        return "macs=" + size + "/" + capacity +
+                " evicted=" + evictions +
+                " expired=" + expirations +
+                " moved=" + moves;
+    }
+
+    private int find(long mac) {
+        int i = slot(mac);
+        int ref;
+        while ((ref = index[i]) != 0) {
+            if (keys[ref - 1] == mac) return ref - 1;
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void insertIndex(long mac, int e) {
+        int i = slot(mac);
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = e + 1;
+    }
+
+    private void remove(int e) {
+        removeIndex(keys[e], e);
+        unlink(e);
+        ports[e] = null;
+        next[e] = freeList;
+        freeList = e;
+        size--;
+    }
+
+    //Linear probing delete: shift later entries of the cluster back so lookups never hit a hole
+    private void removeIndex(long mac, int e) {
+        int i = slot(mac);
+        while (index[i] != e + 1) {
+            i = (i + 1) & mask;
+        }
+
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int ref = index[j];
+            if (ref == 0) break;
+            int home = slot(keys[ref - 1]);
+            // Move it back unless its home slot lies cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                index[hole] = ref;
+                hole = j;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    private void linkFirst(int e) {
+        prev[e] = NONE;
+        next[e] = head;
+        if (head != NONE) prev[head] = e;
+        head = e;
+        if (tail == NONE) tail = e;
+    }
+
+    private void unlink(int e) {
+        int p = prev[e];
+        int n = next[e];
+        if (p != NONE) next[p] = n; else head = n;
+        if (n != NONE) prev[n] = p; else tail = p;
+    }
+
+    private int slot(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Transport between nodes running in the same JVM
+//
+//Every node bound on a Network gets a lock-free queue of datagrams. Sending copies the frame into
+//the target's queue, or drops it if the target is unknown or already has -Dsim.queueCapacity
+//datagrams waiting, the same way a full socket buffer would.
+public class MemoryTransport implements Transport {
+
+    //All in-memory nodes that can reach each other, by the address from the config
+    public static class Network {
+        private final Map<InetSocketAddress, MemoryTransport> nodes = new ConcurrentHashMap<>();
+        private final int queueCapacity = Integer.getInteger("sim.queueCapacity", 4096);
+        private final LongAdder delivered = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+
+        public MemoryTransport bind(InetSocketAddress address) {
+            MemoryTransport transport = new MemoryTransport(this, address);
+            if (nodes.putIfAbsent(address, transport) != null) {
+                throw new IllegalStateException("Address already in use: " + address);
+            }
+            return transport;
+        }
+
+        public long getDelivered() {
+            return delivered.sum();
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+    }
+
+    private static class Datagram {
+        final InetSocketAddress from;
+        final byte[] data;
+
+        Datagram(InetSocketAddress from, byte[] data) {
+            this.from = from;
+            this.data = data;
+        }
+    }
+
+    private final Network network;
+    private final InetSocketAddress localAddress;
+    private final Queue<Datagram> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Receivers parked on an empty queue, woken by the next send
+    private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    private MemoryTransport(Network network, InetSocketAddress localAddress) {
+        this.network = network;
+        this.localAddress = localAddress;
+    }
+
+    @Override
+    public boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        if (closed) throw new IOException("Transport closed");
+
+        MemoryTransport receiver = network.nodes.get(target);
+        if (receiver == null || receiver.closed) {
+            // Like UDP, nobody listening is not the sender's problem
+            network.dropped.increment();
+            return true;
+        }
+        if (receiver.queued.incrementAndGet() > network.queueCapacity) {
+            receiver.queued.decrementAndGet();
+            network.dropped.increment();
+            return true;
+        }
+
+        byte[] data = new byte[datagram.remaining()];
+        datagram.get(datagram.position(), data);
+        receiver.queue.offer(new Datagram(localAddress, data));
+        network.delivered.increment();
+
+        if (!receiver.waiters.isEmpty()) {
+            for (Thread waiter : receiver.waiters) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer dst, long timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+
+        Datagram datagram = queue.poll();
+        while (datagram == null) {
+            if (closed) throw new IOException("Transport closed");
+            if (timeoutMs == 0) return null;
+
+            Thread self = Thread.currentThread();
+            waiters.add(self);
+            try {
+                // Checked again after registering, a send in between would not have woken us
+                datagram = queue.poll();
+                if (datagram != null) break;
+
+                if (timeoutMs < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return null;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } finally {
+                waiters.remove(self);
+            }
+            datagram = queue.poll();
+        }
+        queued.decrementAndGet();
+
+        dst.put(datagram.data, 0, Math.min(datagram.data.length, dst.remaining()));
+        dst.flip();
+        return datagram.from;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        network.nodes.remove(localAddress, this);
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Counters, gauges and histograms of one node, written out as text by AdminServer.
+//Counters and histogram buckets are LongAdders so workers can update them without contention.
+//Names follow "name" or "name{label=\"value\"}", one line per value:
+//  router_packets_in{neighbor="R2"} 42
+//  router_spf_duration_us_bucket{le="100"} 3
+public class Metrics {
+
+    // Histogram bucket upper bounds for durations in microseconds
+    public static final long[] MICROS_BUCKETS = {
+            10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+
+    private final String nodeId;
+
+    // Registration order is the output order
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+    public Metrics(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public synchronized Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public Counter counter(String name, String label, String value) {
+        return counter(labeled(name, label, value));
+    }
+
+    //Value read when the metrics are written out, for state that is already counted elsewhere
+    public synchronized void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    public void gauge(String name, String label, String value, LongSupplier supplier) {
+        gauge(labeled(name, label, value), supplier);
+    }
+
+    public synchronized Histogram histogram(String name, long[] bounds) {
+        return (Histogram) metrics.computeIfAbsent(name, k -> new Histogram(bounds));
+    }
+
+    //Drops every metric carrying this label value, for example the ones of a removed neighbor
+    public synchronized void remove(String label, String value) {
+        String suffix = labeled("", label, value);
+        metrics.keySet().removeIf(name -> name.endsWith(suffix));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    //All metrics in the text format above
+    public String format() {
+        Map<String, Object> copy;
+        synchronized (this) {
+            copy = new LinkedHashMap<>(metrics);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("# node ").append(nodeId).append('\n');
+        for (Map.Entry<String, Object> e : copy.entrySet()) {
+            String name = e.getKey();
+            Object metric = e.getValue();
+            if (metric instanceof Counter) {
+                line(sb, name, ((Counter) metric).sum());
+            } else if (metric instanceof LongSupplier) {
+                line(sb, name, ((LongSupplier) metric).getAsLong());
+            } else {
+                ((Histogram) metric).format(sb, name);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String labeled(String name, String label, String value) {
+        return name + "{" + label + "=\"" + value + "\"}";
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    public static class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    //Fixed buckets given by their upper bounds, values above the last bound go to an overflow bucket
+    public static class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        //Upper bound of the bucket holding the given percentile (0-100), or -1 if empty.
+        //Long.MAX_VALUE if it falls in the overflow bucket.
+        public long percentile(double p) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) return -1;
+
+            long rank = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return bounds[i];
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private void format(StringBuilder sb, String name) {
+            // Buckets are cumulative, "le" is the inclusive upper bound
+            String base = name;
+            String labels = "";
+            int brace = name.indexOf('{');
+            if (brace >= 0) {
+                base = name.substring(0, brace);
+                labels = name.substring(brace + 1, name.length() - 1) + ",";
+            }
+
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? Long.toString(bounds[i]) : "+Inf";
+                line(sb, base + "_bucket{" + labels + "le=\"" + le + "\"}", cumulative);
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            line(sb, base + "_sum" + suffix, sum.sum());
+            line(sb, base + "_count" + suffix, cumulative);
+        }
+    }
+}
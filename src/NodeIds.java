@@ -0,0 +1,62 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Interns device IDs ("R1", "S2", "A") as dense ints starting at 0
+//
+//Numbers are handed out in the order IDs are first seen (Parser registers the config in file
+//order), so they are only meaningful inside one process and never go on the wire.
+public final class NodeIds {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int count = 0;
+
+    private NodeIds() {
+    }
+
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        synchronized (NodeIds.class) {
+            id = ids.get(name);
+            if (id != null) return id;
+
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+            }
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    //Number for an ID that is already known, or -1
+    public static int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public static String name(int id) {
+        return names[id];
+    }
+
+    //One more than the largest number handed out so far, for sizing arrays
+    public static int count() {
+        synchronized (NodeIds.class) {
+            return count;
+        }
+    }
+
+    public static int[] internAll(Iterable<String> names) {
+        int n = 0;
+        for (String ignored : names) n++;
+
+        int[] result = new int[n];
+        int i = 0;
+        for (String name : names) {
+            result[i++] = intern(name);
+        }
+        return result;
+    }
+}
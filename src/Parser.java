@@ -1,93 +1,175 @@
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.net.InetSocketAddress;
 import java.util.*;
 
-public class Parser {
+//Text config reader
+//
+//The config is a list of device blocks (ID, port, IP, then any virtual IPs starting with "net")
+//followed by "a:b" or "a:b:mtu" link lines. It is read in one pass without holding the lines;
+//see TopologySnapshot for skipping the parse altogether.
+public class Parser implements Topology {
+
+    private static final int[] NO_LINKS = new int[0];
+
+    // Device IDs are interned with NodeIds, the tables below are indexed by their numbers
 
     // Maps IDs to IP
-    private final Map<String, InetSocketAddress> deviceMap = new HashMap<>();
-    // Maps IDs to List of neighbor device IDs
-    private final Map<String, List<String>> links = new HashMap<>();
-    // Maps ID to virtual IPs
-    private final Map<String, List<String>> virtualIpMap = new HashMap<>();
+    private InetSocketAddress[] addresses = new InetSocketAddress[16];
+    // Maps IDs to neighbor device IDs
+    private int[][] links = new int[16][];
+    // MTU of each of those links, 0 where the config gives none
+    private int[][] linkMtus = new int[16][];
+    // Maps ID to virtual IPs, grown along with the arrays
+    private final List<List<String>> virtualIps = new ArrayList<>(Collections.nCopies(16, null));
     // Maps ID to gateway virtual IPs
-    private final Map<String, String> gatewayMap = new HashMap<>();
+    private String[] gateways = new String[16];
+    // Device IDs in file order
+    private final List<String> deviceIds = new ArrayList<>();
 
     public Parser(String filename) throws Exception {
         parse(filename);
     }
 
     private void parse(String filename) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+
+            String id = null;       // device whose block is being read
+            int blockLine = 0;      // lines of that block read so far
+            int port = 0;
+            String ip = null;
+            List<String> vips = null;
+            boolean inLinks = false;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                if (inLinks) {
+                    parseLink(line);
+                    continue;
+                }
+                if (blockLine == 1) {
+                    port = Integer.parseInt(line);
+                    blockLine++;
+                    continue;
+                }
+                if (blockLine == 2) {
+                    ip = line;
+                    blockLine++;
+                    continue;
+                }
+                if (blockLine == 3 && line.startsWith("net")) {
+                    vips.add(line);
+                    continue;
+                }
 
-        List<String> lines = new ArrayList<>();
-        Scanner scanner = new Scanner(new File(filename));
+                // Anything else ends the current block and starts the next one, or the links
+                if (id != null) addDevice(id, port, ip, vips);
+                if (line.contains(":")) {
+                    inLinks = true;
+                    id = null;
+                    parseLink(line);
+                } else {
+                    id = line;
+                    blockLine = 1;
+                    vips = new ArrayList<>();
+                }
+            }
 
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().trim();
-            if (!line.isEmpty()) {
-                lines.add(line);
+            if (id != null) {
+                if (blockLine < 3) throw new IllegalArgumentException("Incomplete config entry for " + id);
+                addDevice(id, port, ip, vips);
             }
         }
-        scanner.close();
-
-        int i = 0;
-        while (i < lines.size()) {
-            String line = lines.get(i);
-
-            if (line.contains(":"))
-                break;
-
-            String id = line;
-            int port = Integer.parseInt(lines.get(i + 1));
-            String ip = lines.get(i + 2);
-            deviceMap.put(id, new InetSocketAddress(ip, port));
-            i += 3;
-            List<String> virtualIps = new ArrayList<>();
-            while (i < lines.size() && lines.get(i).startsWith("net")) {
-                virtualIps.add(lines.get(i));
-                i++;
-            }
-            if (!virtualIps.isEmpty()) {
-                virtualIpMap.put(id, virtualIps);
-                if (isHost(id) && virtualIps.size() >= 2) {
-                    gatewayMap.put(id, virtualIps.get(1));
-                }
+    }
+
+    private void addDevice(String id, int port, String ip, List<String> vips) {
+        deviceIds.add(id);
+        int node = NodeIds.intern(id);
+        ensureCapacity(node + 1);
+
+        addresses[node] = new InetSocketAddress(ip, port);
+        if (!vips.isEmpty()) {
+            virtualIps.set(node, vips);
+            if (isHost(id) && vips.size() >= 2) {
+                gateways[node] = vips.get(1);
             }
         }
+    }
 
-        while (i < lines.size()) {
-
-            String linkLine = lines.get(i);
-            String[] parts = linkLine.split(":");
+    private void parseLink(String linkLine) {
+        String[] parts = linkLine.split(":");
 
-            if (parts.length == 2) {
+        if (parts.length == 2 || parts.length == 3) {
 
-                String a = parts[0];
-                String b = parts[1];
+            int a = NodeIds.intern(parts[0]);
+            int b = NodeIds.intern(parts[1]);
+            ensureCapacity(Math.max(a, b) + 1);
 
-                links.computeIfAbsent(a, k -> new ArrayList<>()).add(b);
-                links.computeIfAbsent(b, k -> new ArrayList<>()).add(a);
+            int mtu = 0;
+            if (parts.length == 3) {
+                mtu = Topology.checkMtu(Integer.parseInt(parts[2].trim()), "link " + linkLine);
             }
-
-            i++;
+            addLink(a, b, mtu);
+            addLink(b, a, mtu);
         }
     }
 
+    private void addLink(int from, int to, int mtu) {
+        int[] row = links[from] == null ? NO_LINKS : links[from];
+        row = Arrays.copyOf(row, row.length + 1);
+        row[row.length - 1] = to;
+        links[from] = row;
+
+        int[] mtus = linkMtus[from] == null ? NO_LINKS : linkMtus[from];
+        mtus = Arrays.copyOf(mtus, mtus.length + 1);
+        mtus[mtus.length - 1] = mtu;
+        linkMtus[from] = mtus;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= addresses.length) return;
+
+        int size = Math.max(n, addresses.length * 2);
+        addresses = Arrays.copyOf(addresses, size);
+        links = Arrays.copyOf(links, size);
+        linkMtus = Arrays.copyOf(linkMtus, size);
+        virtualIps.addAll(Collections.nCopies(size - virtualIps.size(), null));
+        gateways = Arrays.copyOf(gateways, size);
+    }
+
     private boolean isHost(String id) {
         return id.length() == 1 && Character.isLetter(id.charAt(0));
     }
 
+    //NodeIds number of a device in this config, or -1
+    private int node(String id) {
+        int node = NodeIds.find(id);
+        return node < addresses.length ? node : -1;
+    }
+
+    @Override
+    public List<String> getDeviceIds() {
+        return Collections.unmodifiableList(deviceIds);
+    }
+
+    @Override
     public InetSocketAddress getAddress(String id) {
-        return deviceMap.get(id);
+        int node = node(id);
+        return node < 0 ? null : addresses[node];
     }
 
+    @Override
     public List<InetSocketAddress> getNeighbors(String id) {
 
         List<InetSocketAddress> neighbors = new ArrayList<>();
-        List<String> neighborIds = links.getOrDefault(id, Collections.emptyList());
+        int node = node(id);
+        if (node < 0 || links[node] == null) return neighbors;
 
-        for (String neighborId : neighborIds) {
-            InetSocketAddress addr = deviceMap.get(neighborId);
+        for (int neighbor : links[node]) {
+            InetSocketAddress addr = addresses[neighbor];
             if (addr != null) {
                 neighbors.add(addr);
             }
@@ -96,21 +178,53 @@ public class Parser {
         return neighbors;
     }
     //Get Neighbors
+    @Override
     public List<String> getNeighborIds(String id) {
-        return links.getOrDefault(id, Collections.emptyList());
+        int node = node(id);
+        if (node < 0 || links[node] == null) return Collections.emptyList();
+
+        List<String> ids = new ArrayList<>(links[node].length);
+        for (int neighbor : links[node]) {
+            ids.add(NodeIds.name(neighbor));
+        }
+        return ids;
     }
     //Get all virtual IPs
+    @Override
     public List<String> getVirtualIps(String id) {
-        return virtualIpMap.getOrDefault(id, Collections.emptyList());
+        int node = node(id);
+        if (node < 0 || virtualIps.get(node) == null) return Collections.emptyList();
+        return virtualIps.get(node);
     }
     //Get virtual IP
+    @Override
     public String getHostVirtualIp(String id) {
-        List<String> vips = virtualIpMap.get(id);
-        if (vips == null || vips.isEmpty()) return null;
+        List<String> vips = getVirtualIps(id);
+        if (vips.isEmpty()) return null;
         return vips.get(0);
     }
     //Get gateway IP
+    @Override
     public String getGatewayVirtualIp(String id) {
-        return gatewayMap.get(id);
+        int node = node(id);
+        return node < 0 ? null : gateways[node];
+    }
+
+    @Override
+    public int getLinkMtu(String a, String b) {
+        int mtu = getConfiguredLinkMtu(a, b);
+        return mtu == 0 ? DEFAULT_MTU : mtu;
+    }
+
+    //MTU the config gives the link, 0 if it gives none, see TopologySnapshot
+    int getConfiguredLinkMtu(String a, String b) {
+        int node = node(a);
+        int other = node(b);
+        if (node < 0 || other < 0 || links[node] == null) return 0;
+
+        for (int i = 0; i < links[node].length; i++) {
+            if (links[node][i] == other) return linkMtus[node][i];
+        }
+        return 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Puts fragmented datagrams back together for a Host, see Frame for the fragment fields
+//
+//An incomplete datagram holds one buffer of its full length, taken from a pool per power of two
+//size and handed back when the datagram completes, times out or is evicted. Together they hold at
+//most -Dhost.reassemblyBytes (default 4 MiB): a new datagram that does not fit evicts the oldest
+//ones, and one bigger than the whole budget is dropped. Datagrams still incomplete after
+//-Dhost.reassemblyTimeoutMs (default 2000) are dropped. Only used by the receive thread.
+public class Reassembler {
+
+    private static final int MIN_SIZE_CLASS = 10;   // 1 KiB buffers
+    private static final int POOLED_PER_CLASS = 2;
+
+    //One datagram being reassembled
+    private static class Partial {
+        final ByteBuffer buffer;
+        final int length;
+        // Which FRAGMENT_UNIT byte blocks of the datagram arrived
+        final BitSet units = new BitSet();
+        int unitsReceived;
+        final long firstArrival;
+
+        Partial(ByteBuffer buffer, int length, long firstArrival) {
+            this.buffer = buffer;
+            this.length = length;
+            this.firstArrival = firstArrival;
+        }
+    }
+
+    private final long maxBytes = Long.getLong("host.reassemblyBytes", 4 << 20);
+    private final long timeoutNanos = Long.getLong("host.reassemblyTimeoutMs", 2000) * 1_000_000;
+
+    // Source IP and datagram ID -> partial datagram, oldest first
+    private final Map<String, Partial> partials = new LinkedHashMap<>();
+    private final BufferPool[] pools = new BufferPool[32];
+    private volatile long heldBytes;
+    private volatile int pending;
+
+    private final Metrics.Counter fragments;
+    private final Metrics.Counter reassembled;
+    private final Metrics.Counter timeouts;
+    private final Metrics.Counter evictions;
+    private final Metrics.Counter oversize;
+    private final Metrics.Counter malformed;
+
+    public Reassembler(Metrics metrics) {
+        this.fragments = metrics.counter("host_fragments_received");
+        this.reassembled = metrics.counter("host_datagrams_reassembled");
+        this.timeouts = metrics.counter("host_reassembly_timeouts");
+        this.evictions = metrics.counter("host_reassembly_evictions");
+        this.oversize = metrics.counter("host_reassembly_oversize");
+        this.malformed = metrics.counter("host_reassembly_malformed");
+        metrics.gauge("host_reassembly_bytes", () -> heldBytes);
+        metrics.gauge("host_reassembly_pending", () -> pending);
+    }
+
+    //Adds one fragment, returns the whole payload once the last missing piece arrived
+    public byte[] add(Frame fragment, long now) {
+        expire(now);
+        fragments.increment();
+
+        int length = fragment.datagramLength;
+        int offset = fragment.fragmentOffset;
+        int len = fragment.payload.length;
+        // Frame.decode checks the same, but a Frame can be built without it
+        if (length <= 0 || offset < 0 || offset % Frame.FRAGMENT_UNIT != 0 || (long) offset + len > length) {
+            malformed.increment();
+            return null;
+        }
+        if (length > maxBytes) {
+            oversize.increment();
+            return null;
+        }
+
+        String key = fragment.srcIp + "/" + fragment.datagramId;
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            int capacity = sizeClass(length);
+            while (heldBytes + capacity > maxBytes && !partials.isEmpty()) {
+                Iterator<Partial> oldest = partials.values().iterator();
+                drop(oldest.next());
+                oldest.remove();
+                evictions.increment();
+            }
+            partial = new Partial(acquire(capacity), length, now);
+            partials.put(key, partial);
+            heldBytes += capacity;
+        } else if (partial.length != length) {
+            // Same ID reused for another datagram, or a corrupt fragment: ignore it
+            return null;
+        }
+
+        if (len == 0) return null;
+        partial.buffer.put(offset, fragment.payload);
+
+        // Only the units of the datagram count toward completing it
+        int units = (length + Frame.FRAGMENT_UNIT - 1) / Frame.FRAGMENT_UNIT;
+        int from = offset / Frame.FRAGMENT_UNIT;
+        int to = Math.min(units, (offset + len + Frame.FRAGMENT_UNIT - 1) / Frame.FRAGMENT_UNIT);
+        int next = partial.units.nextSetBit(from);
+        if (next < 0 || next >= to) {
+            partial.units.set(from, to);
+            partial.unitsReceived += to - from;
+        } else {
+            // Overlaps what we have, count only the new blocks
+            for (int u = from; u < to; u++) {
+                if (!partial.units.get(u)) {
+                    partial.units.set(u);
+                    partial.unitsReceived++;
+                }
+            }
+        }
+
+        byte[] payload = null;
+        if (partial.unitsReceived == units) {
+            payload = new byte[length];
+            partial.buffer.get(0, payload);
+            partials.remove(key);
+            drop(partial);
+            reassembled.increment();
+        }
+        pending = partials.size();
+        return payload;
+    }
+
+    //Drops datagrams whose first fragment arrived more than the timeout ago
+    public void expire(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.firstArrival < timeoutNanos) break;
+            drop(partial);
+            it.remove();
+            timeouts.increment();
+        }
+        pending = partials.size();
+    }
+
+    //Gives the buffer of a datagram that is removed (or about to be) back to its pool
+    private void drop(Partial partial) {
+        int capacity = partial.buffer.capacity();
+        pools[Integer.numberOfTrailingZeros(capacity)].release(partial.buffer);
+        heldBytes -= capacity;
+    }
+
+    private ByteBuffer acquire(int capacity) {
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        if (pools[sizeClass] == null) {
+            pools[sizeClass] = new BufferPool(POOLED_PER_CLASS, capacity);
+        }
+        return pools[sizeClass].acquire();
+    }
+
+    private static int sizeClass(int length) {
+        return Math.max(1 << MIN_SIZE_CLASS, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    }
+}
@@ -1,323 +1,1435 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Router {
 
     private String routerId;
-    private int myPort;
-    private DatagramSocket socket;
+    private final long myMacKey;
+    private final Transport transport;
+
+    // Forwarding workers sharing the transport, set with -Drouter.workers
+    private final int workerCount;
+
+    // Receive buffers, sized with -Drouter.bufferCount (by default 64 plus enough to fill every egress
+    // queue, grown and shrunk as neighbors come and go) and -Drouter.bufferSize (by default the largest
+    // link MTU, at least 9216) when the router starts. Also hold the data frames and fragments waiting
+    // in the egress queues.
+    private BufferPool bufferPool;
+    private boolean bufferPoolPerQueue;
+
+    // Counters and histograms served by AdminServer, see registerMetrics()
+    private final Metrics metrics;
+    private final Metrics.Counter truncatedFrames;
+    private final Metrics.Counter malformedFrames;
+    private final Metrics.Counter noRoute;
+    private final Metrics.Counter framesForwarded;
+    private final Metrics.Counter framesDelivered;
+    private final Metrics.Counter fragmentsCreated;
+    private final Metrics.Counter lsasProcessed;
+    private final Metrics.Counter spfRuns;
+    private final Metrics.Histogram spfDuration;
+    private final Metrics.Histogram convergence;
+    // Per-neighbor packet counts by socket address, see attachNeighbor()
+    private final Map<InetSocketAddress, NeighborCounters> neighborCounters = new ConcurrentHashMap<>();
+    private NeighborCounters unknownNeighbor;
+    // Output queue and sender per neighbor by socket address, control frames ahead of data.
+    // -Drouter.egressQueueFrames=0 turns them off, frames are then sent by whoever produced them.
+    private final Map<InetSocketAddress, EgressQueue> egressQueues = new ConcurrentHashMap<>();
+
+    // Changed only by addNeighbor() before start and by reconfigure() on the control plane
+    private final Map<String, InetSocketAddress> neighbors = new ConcurrentHashMap<>();
+    private final Map<String, Integer> linkMtus = new ConcurrentHashMap<>();
+
+    // Forwarding state read by the workers, replaced as a whole after every table build
+    private volatile ForwardingSnapshot snapshot = ForwardingSnapshot.EMPTY;
+    // Recent flows resolved from the snapshot, see forwardFrame()
+    private final FlowCache flowCache;
+    private volatile long lastFibUpdate = 0;
+
+    // Link-state structures, only touched on the control plane thread
+    private final ScheduledExecutorService controlPlane =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Router-Control");
+                t.setDaemon(true);
+                return t;
+            });
+    // LSA database indexed by NodeIds number of the originating router, the adjacency
+    // part of it lives in spf
+    private LsaEntry[] lsaDatabase = new LsaEntry[16];
+    private volatile int lsaCount = 0;
+    private Map<String, String> subnetToRouter = new HashMap<>();
+    private Set<String> mySubnets = new HashSet<>();
+    private int mySeq = 0;
+    private Spf spf;
+    // Equal cost paths kept per destination, 1 turns multipath forwarding off
+    private final int maxPaths = Math.max(1, Integer.getInteger("router.maxPaths", 4));
+
+    // Reliable flooding: LSAs sent to each router neighbor that it has not acknowledged yet,
+    // resent every -Drouter.lsaRetransmitMs. Our own LSA is re-originated every -Drouter.lsaRefreshMs
+    // and LSAs that are not refreshed are flushed after -Drouter.lsaMaxAgeSec, see flushLSA.
+    private final Map<String, Map<String, Lsa>> unacked = new HashMap<>();
+    private final long lsaRetransmitMs = Long.getLong("router.lsaRetransmitMs", 1000);
+    private final long lsaRefreshMs = Long.getLong("router.lsaRefreshMs", 30 * 60 * 1000);
+    private final int lsaMaxAgeSec = Integer.getInteger("router.lsaMaxAgeSec", 3600);
+
+    // Batching: LSAs and acks for a neighbor are held for -Drouter.lsaFlushMs, then packed
+    // into as few datagrams of at most -Drouter.lsaMaxDatagram bytes as possible
+    private final Map<String, FloodQueue> floodQueues = new HashMap<>();
+    private final long lsaFlushMs = Long.getLong("router.lsaFlushMs", 10);
+    private final int lsaMaxDatagram = Integer.getInteger("router.lsaMaxDatagram", 1400);
+    // Header, entry count and one ack of the longest router ID
+    private static final int MIN_LSA_DATAGRAM = Frame.HEADER_LEN + 2 + 1 + Frame.MAC_LEN + 4;
+
+    // SPF throttling: routers whose LSA changed since the last run, folded into one computation
+    // that starts -Drouter.spfInitialDelayMs after the first change and waits at least a hold time
+    // between runs. The hold doubles up to -Drouter.spfMaxHoldMs while changes keep coming.
+    private final BitSet pendingSpf = new BitSet();
+    private final long spfInitialDelayMs = Long.getLong("router.spfInitialDelayMs", 50);
+    private final long spfHoldMs = Long.getLong("router.spfHoldMs", 200);
+    private final long spfMaxHoldMs = Long.getLong("router.spfMaxHoldMs", 5000);
+    private long spfCurrentHoldMs = spfHoldMs;
+    private long lastSpfRun = 0;
+    private boolean spfScheduled = false;
+    // When the oldest change not yet in the forwarding table arrived, 0 if there is none
+    private long changePendingSince = 0;
+
+    // Control-plane traffic, reported every -Drouter.statsIntervalMs
+    private final Metrics.Counter controlBytesSent;
+    private final Metrics.Counter controlFramesSent;
+    private final Metrics.Counter lsasSent;
+    private final Metrics.Counter controlBytesReceived;
+    private final long statsIntervalMs = Long.getLong("router.statsIntervalMs", 10000);
+    private long lastStatsTime = System.currentTimeMillis();
+    private long lastControlBytesSent = 0;
+    private long lastControlBytesReceived = 0;
+    private long lastControlFramesSent = 0;
+    private long lastLsasSent = 0;
+
+    // Link costs from measured RTT: every -Drouter.probeMs (0 turns probing off) each router
+    // neighbor is probed and the reply feeds a smoothed RTT. A link costs 1 plus one per
+    // -Drouter.costUnitUs of smoothed RTT. The advertised cost only follows when it moved by at
+    // least -Drouter.costHysteresisPct percent and -Drouter.costHoldMs passed since its last change,
+    // so routes do not flap with every measurement.
+    private final Map<String, LinkProbe> linkProbes = new ConcurrentHashMap<>();
+    private final long probeMs = Long.getLong("router.probeMs", 1000);
+    private final long costUnitNanos = Long.getLong("router.costUnitUs", 1000) * 1000;
+    private final int costHysteresisPct = Integer.getInteger("router.costHysteresisPct", 50);
+    private final long costHoldMs = Long.getLong("router.costHoldMs", 10000);
+
+    // Neighbor liveness: every -Drouter.helloMs (0 turns it off) a hello goes to each router neighbor
+    // from a timer shared by all routers of the process, so a busy control plane does not hold
+    // hellos back. The timer gets a thread per -Drouter.helloRoutersPerThread routers started
+    // (default 64), so a process simulating many routers does not send them late. A neighbor not
+    // heard from for -Drouter.deadMultiplier intervals is left out of our LSA until its next hello.
+    // Detection and failure-to-new-table times go to the histograms.
+    private static final ScheduledThreadPoolExecutor helloTimer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Router-Hello");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final int HELLO_ROUTERS_PER_THREAD =
+            Math.max(1, Integer.getInteger("router.helloRoutersPerThread", 64));
+    private static final AtomicInteger helloRouters = new AtomicInteger();
+    private final long helloMs = Long.getLong("router.helloMs", 250);
+    private final long deadNanos = helloMs * Integer.getInteger("router.deadMultiplier", 4) * 1_000_000;
+    private final Map<String, Adjacency> adjacencies = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Adjacency> adjacenciesByAddress = new ConcurrentHashMap<>();
+    private final Metrics.Counter adjacencyChanges;
+    private final Metrics.Histogram failureDetection;
+    private final Metrics.Histogram reconvergence;
+    // When the oldest failed neighbor not yet routed around was last heard, 0 if there is none
+    private long failurePendingSince = 0;
+
+    private static final int[] NO_NEIGHBORS = new int[0];
+
+    //Stored LSA, its age keeps growing from the time it was installed
+    private static class LsaEntry {
+        final Lsa lsa;
+        final int router;
+        final int[] routerNeighbors;
+        final int[] routerCosts;
+        final long bornAt;
+
+        LsaEntry(Lsa lsa, long now) {
+            this.lsa = lsa;
+            this.router = NodeIds.intern(lsa.routerId);
+            this.bornAt = now - lsa.age * 1000L;
+
+            List<String> routers = new ArrayList<>();
+            int[] costs = new int[lsa.neighbors.size()];
+            for (int i = 0; i < lsa.neighbors.size(); i++) {
+                String neighborId = lsa.neighbors.get(i);
+                if (neighborId.startsWith("R")) {
+                    costs[routers.size()] = lsa.costs[i];
+                    routers.add(neighborId);
+                }
+            }
+            this.routerNeighbors = NodeIds.internAll(routers);
+            this.routerCosts = Arrays.copyOf(costs, routers.size());
+        }
 
-    private Map<String, InetSocketAddress> neighbors = new HashMap<>();
+        int age(long now) {
+            return (int) ((now - bornAt) / 1000);
+        }
+    }
 
-    private Map<String, ForwardingEntry> forwardingTable = new HashMap<>();
+    private static class NeighborCounters {
+        final Metrics.Counter packetsIn;
+        final Metrics.Counter packetsOut;
 
-    // Link-state structures
-    private Map<String, Set<String>> topology = new HashMap<>();
-    private Map<String, String> lsaDatabase = new HashMap<>();
-    private Map<String, String> subnetToRouter = new HashMap<>();
-    private Set<String> mySubnets = new HashSet<>();
-    private String myLSA = "";
+        NeighborCounters(Metrics metrics, String neighborId) {
+            this.packetsIn = metrics.counter("router_packets_in", "neighbor", neighborId);
+            this.packetsOut = metrics.counter("router_packets_out", "neighbor", neighborId);
+        }
+    }
+
+    //Measured RTT of the link to one router neighbor and the cost advertised for it,
+    //written on the control plane thread and read by the metrics
+    private static class LinkProbe {
+        volatile long srttNanos = -1;  // -1 until the first reply
+        volatile int cost = 1;
+        // Starts as if the cost just changed, so the first advertised cost is already smoothed
+        long costChangedAt = System.currentTimeMillis();
+    }
+
+    //Liveness of one router neighbor, lastHeard is written by the workers on every hello and
+    //up only on the control plane thread. upQueued keeps a burst of hellos from a down neighbor
+    //to one neighborUp task.
+    private static class Adjacency {
+        final String neighborId;
+        final byte[] hello;
+        final AtomicBoolean upQueued = new AtomicBoolean();
+        volatile long lastHeard = System.nanoTime();
+        volatile boolean up = true;
+
+        Adjacency(String neighborId, String routerId) {
+            this.neighborId = neighborId;
+            this.hello = new Frame(Frame.FLAG_HELLO, routerId, neighborId, "", "", new byte[0]).toBytes();
+        }
+    }
+
+    //LSAs (newest per originator) and acks waiting to be sent to one neighbor
+    private static class FloodQueue {
+        final Map<String, Lsa> lsas = new LinkedHashMap<>();
+        final List<Lsa> acks = new ArrayList<>();
+        boolean flushScheduled;
+    }
 
-    private static class ForwardingEntry {
-        String exitPortNeighborId;
+    //Control-plane work that may throw, see control()
+    private interface ControlTask {
+        void run() throws Exception;
+    }
+
+    //Equal cost exit ports toward one destination router, at most -Drouter.maxPaths
+    static class ForwardingEntry {
+        String[] exitPortNeighborIds;
         String nextHopVirtualIP;
 
-        ForwardingEntry(String exitPortNeighborId, String nextHopVirtualIP) {
-            this.exitPortNeighborId = exitPortNeighborId;
+        ForwardingEntry(String[] exitPortNeighborIds, String nextHopVirtualIP) {
+            this.exitPortNeighborIds = exitPortNeighborIds;
             this.nextHopVirtualIP = nextHopVirtualIP;
         }
     }
 
+    //Immutable view of the tables the forwarding path needs. The generation goes up with every
+    //snapshot published, flow cache entries resolved from an older one are not used.
+    private static class ForwardingSnapshot {
+        static final ForwardingSnapshot EMPTY =
+                new ForwardingSnapshot(new ForwardingEntry[0], new Fib(Collections.emptyList()), 0);
+
+        final ForwardingEntry[] forwardingTable;
+        final Fib fib;
+        final long generation;
+
+        ForwardingSnapshot(ForwardingEntry[] forwardingTable, Fib fib, long generation) {
+            this.forwardingTable = forwardingTable;
+            this.fib = fib;
+            this.generation = generation;
+        }
+    }
+
     public Router(String routerId, int myPort) throws Exception {
+        this(routerId, new UdpTransport(new InetSocketAddress(myPort)));
+    }
+
+    public Router(String routerId, Transport transport) {
         this.routerId = routerId;
-        this.myPort = myPort;
-        this.socket = new DatagramSocket(myPort);
+        this.transport = transport;
+        this.myMacKey = Frame.macKey(routerId);
+        this.spf = new Spf(NodeIds.intern(routerId));
+
+        if (lsaMaxDatagram < MIN_LSA_DATAGRAM) {
+            throw new IllegalArgumentException("router.lsaMaxDatagram must be at least " + MIN_LSA_DATAGRAM +
+                    " bytes, got " + lsaMaxDatagram);
+        }
+
+        this.workerCount = Math.max(1,
+                Integer.getInteger("router.workers", Runtime.getRuntime().availableProcessors()));
+
+        this.metrics = new Metrics(routerId);
+        this.truncatedFrames = metrics.counter("router_truncated_frames");
+        this.malformedFrames = metrics.counter("router_malformed_frames");
+        this.noRoute = metrics.counter("router_no_route_drops");
+        this.framesForwarded = metrics.counter("router_frames_forwarded");
+        this.framesDelivered = metrics.counter("router_frames_delivered");
+        this.fragmentsCreated = metrics.counter("router_fragments_created");
+        this.flowCache = new FlowCache(metrics);
+        this.controlBytesSent = metrics.counter("router_control_bytes_sent");
+        this.controlBytesReceived = metrics.counter("router_control_bytes_received");
+        this.controlFramesSent = metrics.counter("router_control_frames_sent");
+        this.lsasSent = metrics.counter("router_lsas_sent");
+        this.lsasProcessed = metrics.counter("router_lsas_processed");
+        this.spfRuns = metrics.counter("router_spf_runs");
+        this.spfDuration = metrics.histogram("router_spf_duration_us", Metrics.MICROS_BUCKETS);
+        this.convergence = metrics.histogram("router_convergence_us", Metrics.MICROS_BUCKETS);
+        this.adjacencyChanges = metrics.counter("router_adjacency_changes");
+        this.failureDetection = metrics.histogram("router_failure_detection_us", Metrics.MICROS_BUCKETS);
+        this.reconvergence = metrics.histogram("router_reconvergence_us", Metrics.MICROS_BUCKETS);
     }
 
+    //Runs the router, the calling thread becoming its first worker
     public void start() throws Exception {
+        startWorkers();
+        receiveLoop();
+    }
 
-        System.out.println("Router " + routerId + " started...");
+    //Sets up the buffers, neighbors and timers and starts every worker but the first, which
+    //start runs on the calling thread
+    private void startWorkers() throws Exception {
 
-        // Send initial LSA
-        sendInitialLSA();
-        floodLSA(myLSA, null);
+        Log.info("Router " + routerId + " started with " + workerCount + " workers...");
+
+        int maxMtu = 9216;
+        for (int mtu : linkMtus.values()) maxMtu = Math.max(maxMtu, mtu);
+        int bufferCount = Integer.getInteger("router.bufferCount", 64);
+        int bufferSize = Integer.getInteger("router.bufferSize", maxMtu);
+        // One spare byte so a datagram that fills the whole buffer is known to be truncated
+        bufferPool = new BufferPool(bufferCount, bufferSize + 1);
+        // Unless the count is given, attachNeighbor adds room for each egress queue
+        bufferPoolPerQueue = System.getProperty("router.bufferCount") == null;
+
+        for (Map.Entry<String, InetSocketAddress> e : neighbors.entrySet()) {
+            attachNeighbor(e.getKey(), e.getValue());
+        }
+        registerMetrics();
+
+        // Advertise ourselves and ask the neighbors for what they already know
+        controlPlane.execute(control(() -> {
+            originateLSA();
+            requestDatabase();
+        }));
+
+        controlPlane.scheduleWithFixedDelay(control(this::retransmitLSAs),
+                lsaRetransmitMs, lsaRetransmitMs, TimeUnit.MILLISECONDS);
+        controlPlane.scheduleWithFixedDelay(control(this::originateLSA),
+                lsaRefreshMs, lsaRefreshMs, TimeUnit.MILLISECONDS);
+        controlPlane.scheduleWithFixedDelay(control(this::ageLSAs),
+                1, 1, TimeUnit.SECONDS);
+        controlPlane.scheduleWithFixedDelay(control(this::printStats),
+                statsIntervalMs, statsIntervalMs, TimeUnit.MILLISECONDS);
+        if (probeMs > 0) {
+            controlPlane.scheduleWithFixedDelay(control(this::sendProbes),
+                    probeMs, probeMs, TimeUnit.MILLISECONDS);
+        }
+        if (helloMs > 0) {
+            int threads = (helloRouters.incrementAndGet() + HELLO_ROUTERS_PER_THREAD - 1) / HELLO_ROUTERS_PER_THREAD;
+            synchronized (helloTimer) {
+                if (threads > helloTimer.getCorePoolSize()) helloTimer.setCorePoolSize(threads);
+            }
+            helloTimer.scheduleWithFixedDelay(control(this::sendHellos),
+                    0, helloMs, TimeUnit.MILLISECONDS);
+        }
 
-        Thread lsaThread = new Thread(() -> {
-            while (true) {
+        for (int i = 1; i < workerCount; i++) {
+            Thread worker = new Thread(() -> {
                 try {
-                    floodAllKnownLSAs();
-                    Thread.sleep(1000);
+                    receiveLoop();
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error("Worker " + Thread.currentThread().getName() + " stopped", e);
                 }
-            }
-        });
-
-        lsaThread.setDaemon(true);
-
-        lsaThread.start();
+            }, "Router-Worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
 
+    //Every worker waits on the transport, whichever wins the receive processes the frame
+    private void receiveLoop() throws Exception {
         while (true) {
-            byte[] buffer = new byte[1024];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);
-            String frame = new String(packet.getData(), 0, packet.getLength()).trim();
-            processFrame(frame);
+            // Drain everything that is queued on the transport with one pooled buffer
+            ByteBuffer buf = bufferPool.acquire();
+            try {
+                InetSocketAddress from = transport.receive(buf, -1);
+                while (from != null) {
+                    neighborCounters(from).packetsIn.increment();
+                    if (buf.limit() == buf.capacity()) {
+                        truncatedFrames.increment();
+                        if (Log.isDebug()) {
+                            Log.debug("Dropped truncated frame (larger than " +
+                                    (buf.capacity() - 1) + " bytes)");
+                        }
+                    } else {
+                        try {
+                            receiveFrame(buf, from);
+                        } catch (Exception e) {
+                            Log.error("Failed to handle frame", e);
+                        }
+                    }
+                    buf.clear();
+                    from = transport.receive(buf, 0);
+                }
+            } finally {
+                bufferPool.release(buf);
+            }
         }
     }
 
-    private void processFrame(String frame) throws Exception {
+    private void receiveFrame(ByteBuffer buf, InetSocketAddress from) throws Exception {
+        if (!Frame.isValid(buf)) {
+            malformedFrames.increment();
+            if (Log.isDebug()) Log.debug("Malformed frame (" + buf.remaining() + " bytes)");
+            return;
+        }
 
-        String[] parts = frame.split(":", 6);
-        if (parts.length < 6) {
-            System.out.println("[DEBUG] Malformed frame: " + frame);
+        byte flag = buf.get(buf.position() + Frame.FLAG_OFFSET);
+        if (flag == Frame.FLAG_DATA) {
+            forwardFrame(buf);
+            return;
+        }
+        // Probes are answered and timed here rather than on the control plane, so its
+        // backlog does not count as link delay
+        if (flag == Frame.FLAG_PROBE) {
+            answerProbe(buf, from);
+            return;
+        }
+        if (flag == Frame.FLAG_HELLO) {
+            Adjacency adjacency = adjacenciesByAddress.get(from);
+            if (adjacency != null) {
+                adjacency.lastHeard = System.nanoTime();
+                if (!adjacency.up && adjacency.upQueued.compareAndSet(false, true)) {
+                    controlPlane.execute(control(() -> neighborUp(adjacency)));
+                }
+            }
+            return;
+        }
+        if (flag == Frame.FLAG_PROBE_REPLY) {
+            if (Frame.payloadLength(buf) < 8) return;
+            long rtt = System.nanoTime() - buf.getLong(buf.position() + Frame.HEADER_LEN);
+            String neighbor = Frame.readField(buf, buf.position() + Frame.SRC_MAC_OFFSET, Frame.MAC_LEN);
+            controlPlane.execute(control(() -> probeReply(neighbor, rtt)));
             return;
         }
 
-        String flag = parts[0];
-        String srcMAC = parts[1];
-        String destMAC = parts[2];
-        String srcIP = parts[3];
-        String destIP = parts[4];
-        String message = parts[5];
+        processControlFrame(Frame.decode(buf));
+    }
 
-        // Routing packet (LSA)
-        if (flag.equals("1")) {
-            processLSA(message, srcMAC);
-            return;
+    //Routing packets, handed to the control plane so forwarding never waits on them
+    private void processControlFrame(Frame frame) {
+        controlBytesReceived.add(frame.encodedLength());
+
+        String srcMAC = frame.srcMac;
+        byte[] payload = frame.payload;
+        switch (frame.flag) {
+            case Frame.FLAG_LSA:
+                controlPlane.execute(control(() -> processLSA(payload, srcMAC)));
+                break;
+            case Frame.FLAG_LSA_ACK:
+                controlPlane.execute(control(() -> processAck(payload, srcMAC)));
+                break;
+            case Frame.FLAG_DB_REQUEST:
+                controlPlane.execute(control(() -> processDatabaseRequest(srcMAC)));
+                break;
+            default:
+                if (Log.isDebug()) Log.debug("Unknown frame flag " + frame.flag + " from " + srcMAC);
         }
+    }
+
+    //Data frames are rewritten in place and sent from the receive buffer. Flows already seen
+    //under the current tables are forwarded from the flow cache, the others are resolved first.
+    private void forwardFrame(ByteBuffer buf) throws Exception {
 
-        if (!destMAC.equals(routerId)) {
+        int start = buf.position();
+
+        if (Frame.macKey(buf, start + Frame.DST_MAC_OFFSET) != myMacKey) {
             return;
         }
 
-        System.out.println("\nRouter " + routerId + " RECEIVED:");
-        printFrame(srcMAC, destMAC, srcIP, destIP, message);
+        if (Log.isDebug()) Log.debug("Router " + routerId + " RECEIVED " + frameString(buf));
+
+        ForwardingSnapshot current = snapshot;
+        FlowCache.Entry flow = flowCache.lookup(buf, start, current.generation);
+        if (flow == null) {
+            flow = resolveFlow(buf, start, current);
+            if (flow == null) return;
+        }
 
-        String dstSubnet = destIP.split("\\.")[0];
+        buf.putLong(start + Frame.SRC_MAC_OFFSET, myMacKey);
+        buf.putLong(start + Frame.DST_MAC_OFFSET, flow.dstMac);
 
-        String destRouter = subnetToRouter.get(dstSubnet);
+        if (flow.isLocal()) {
+            framesDelivered.increment();
+            if (Log.isDebug()) Log.debug("Router " + routerId + " DELIVERING TO HOST " + frameString(buf));
+        } else {
+            framesForwarded.increment();
+            if (Log.isDebug()) Log.debug("Router " + routerId + " FORWARDING " + frameString(buf));
+        }
 
-        if (destRouter == null) {
-            System.out.println("[DEBUG] Unknown subnet " + dstSubnet);
+        InetSocketAddress egress = flow.egress;
+        if (buf.remaining() > flow.mtu) {
+            sendFragments(buf, egress, flow.mtu);
             return;
         }
+        EgressQueue queue = egressQueues.get(egress);
+        if (queue != null) {
+            queue.offerData(buf);
+        } else {
+            sendNow(buf, egress);
+        }
+    }
 
-        if (destRouter.equals(routerId)) {
-            // Send toward host (final delivery)
-            String hostId = destIP.split("\\.")[1];  // "B" from net2.B
+    //Looks the frame's flow up in the tables of a snapshot and caches the result: the subnet's Fib
+    //entry, then the path of the flow, or the host for final delivery. Null if there is no route.
+    private FlowCache.Entry resolveFlow(ByteBuffer buf, int start, ForwardingSnapshot current) {
+        Fib.Entry route = current.fib.lookup(buf, start + Frame.DST_IP_OFFSET);
 
-            String newFrame = "0:" + routerId + ":" + hostId + ":" +
-                    srcIP + ":" + destIP + ":" + message;
+        if (route == null) {
+            noRoute.increment();
+            if (Log.isDebug()) {
+                Log.debug("No route for " + Frame.readField(buf, start + Frame.DST_IP_OFFSET, Frame.IP_LEN));
+            }
+            return null;
+        }
 
-            InetSocketAddress lanNeighbor = null;
-            for (String neighborId : neighbors.keySet()) {
-                if (neighborId.startsWith("S")) {
-                    lanNeighbor = neighbors.get(neighborId);
-                    break;
-                }
+        if (route.isLocal()) {
+            // Final delivery, the host MAC is the part after the '.' ("B" from net2.B)
+            int ipIndex = start + Frame.DST_IP_OFFSET;
+            int hostIndex = ipIndex + Fib.subnetLength(buf, ipIndex) + 1;
+            int hostLen = 0;
+            while (hostIndex - ipIndex + hostLen < Frame.IP_LEN && buf.get(hostIndex + hostLen) != 0) {
+                hostLen++;
+            }
+            if (hostLen == 0 || hostLen > Frame.MAC_LEN) {
+                if (Log.isDebug()) Log.debug("No host in destination IP");
+                return null;
             }
+            long hostMac = 0;
+            for (int k = 0; k < Frame.MAC_LEN; k++) {
+                hostMac = hostMac << 8 | (k < hostLen ? buf.get(hostIndex + k) & 0xFF : 0);
+            }
+            return flowCache.put(buf, start, current.generation, hostMac, route.egress[0], route.mtu[0], true);
+        }
 
-            if (lanNeighbor == null) {
-                System.out.println("[DEBUG] No local switch for final delivery");
-                return;
+        int path = route.select(buf, start);
+        long nextHopMac = Frame.macKey(ByteBuffer.wrap(route.nextHopMac[path]), 0);
+        return flowCache.put(buf, start, current.generation, nextHopMac, route.egress[path], route.mtu[path], false);
+    }
+
+    //Splits a rewritten frame that is too big for the egress link into fragments of whole
+    //FRAGMENT_UNITs, each built in a pooled buffer from the header and a slice of the payload.
+    //Offsets are relative to the whole datagram, so a fragment can be split again.
+    private void sendFragments(ByteBuffer buf, InetSocketAddress egress, int mtu) throws Exception {
+        int start = buf.position();
+        int len = Frame.payloadLength(buf);
+        int offset = buf.getInt(start + Frame.FRAGMENT_OFFSET_OFFSET);
+        int piece = (mtu - Frame.HEADER_LEN) / Frame.FRAGMENT_UNIT * Frame.FRAGMENT_UNIT;
+
+        EgressQueue queue = egressQueues.get(egress);
+        ByteBuffer out = bufferPool.acquire();
+        try {
+            for (int off = 0; off < len; off += piece) {
+                int n = Math.min(piece, len - off);
+                out.clear();
+                out.put(0, buf, start, Frame.HEADER_LEN);
+                out.put(Frame.HEADER_LEN, buf, start + Frame.HEADER_LEN + off, n);
+                out.putInt(Frame.FRAGMENT_OFFSET_OFFSET, offset + off);
+                out.putInt(Frame.LENGTH_OFFSET, n);
+                out.limit(Frame.HEADER_LEN + n);
+
+                fragmentsCreated.increment();
+                if (queue != null) {
+                    queue.offerData(out);
+                } else {
+                    sendNow(out, egress);
+                }
             }
+        } finally {
+            bufferPool.release(out);
+        }
+    }
 
-            System.out.println("Router " + routerId + " DELIVERING TO HOST:");
-            printFrame(routerId, hostId, srcIP, destIP, message);
+    //Sends the probe back in place with the flag and MACs swapped, the timestamp is left as is
+    private void answerProbe(ByteBuffer buf, InetSocketAddress from) throws Exception {
+        int start = buf.position();
+        if (Frame.payloadLength(buf) < 8) return;
 
-            sendFrame(newFrame, lanNeighbor);
-            return;
+        long prober = Frame.macKey(buf, start + Frame.SRC_MAC_OFFSET);
+        buf.put(start + Frame.FLAG_OFFSET, Frame.FLAG_PROBE_REPLY);
+        buf.putLong(start + Frame.DST_MAC_OFFSET, prober);
+        buf.putLong(start + Frame.SRC_MAC_OFFSET, myMacKey);
+
+        queueControl(buf, from);
+    }
+
+    // ===================== NEIGHBOR LIVENESS =====================
+
+    //Runs on the hello timer: sends our hellos and hands neighbors that went quiet to the control plane
+    private void sendHellos() throws Exception {
+        long now = System.nanoTime();
+        for (Adjacency adjacency : adjacencies.values()) {
+            queueControl(ByteBuffer.wrap(adjacency.hello), neighbors.get(adjacency.neighborId));
+            if (adjacency.up && now - adjacency.lastHeard > deadNanos) {
+                controlPlane.execute(control(() -> neighborDown(adjacency)));
+            }
         }
+    }
 
-        ForwardingEntry entry = forwardingTable.get(destRouter);
+    private void neighborDown(Adjacency adjacency) throws Exception {
+        long lastHeard = adjacency.lastHeard;
+        long now = System.nanoTime();
+        if (!adjacency.up || now - lastHeard <= deadNanos) return;
+
+        adjacency.up = false;
+        adjacencyChanges.increment();
+        failureDetection.record((now - lastHeard) / 1000);
+        if (failurePendingSince == 0 || lastHeard < failurePendingSince) failurePendingSince = lastHeard;
+        Log.warn("Neighbor " + adjacency.neighborId + " of " + routerId + " down, not heard for " +
+                (now - lastHeard) / 1_000_000 + " ms");
+
+        // Nothing more goes out to it until it is back
+        unacked.remove(adjacency.neighborId);
+        removeFlushedLSAs();
+        FloodQueue queue = floodQueues.get(adjacency.neighborId);
+        if (queue != null) {
+            queue.lsas.clear();
+            queue.acks.clear();
+        }
+        originateLSA();
+    }
 
-        if (entry == null) {
-            System.out.println("[DEBUG] No route to router " + destRouter);
-            return;
+    //A neighbor is back, or restarted: advertise the link again and swap databases with it
+    private void neighborUp(Adjacency adjacency) throws Exception {
+        adjacency.upQueued.set(false);
+        if (adjacency.up) return;
+
+        adjacency.up = true;
+        adjacencyChanges.increment();
+        Log.info("Neighbor " + adjacency.neighborId + " of " + routerId + " up");
+
+        originateLSA();
+        sendFrame(new Frame(Frame.FLAG_DB_REQUEST, routerId, adjacency.neighborId, "", "", new byte[0]),
+                neighbors.get(adjacency.neighborId));
+    }
+
+    // ===================== LINK COSTS =====================
+
+    private void sendProbes() throws Exception {
+        ByteBuffer timestamp = ByteBuffer.allocate(8);
+        for (String neighbor : routerNeighborIds()) {
+            timestamp.putLong(0, System.nanoTime());
+            sendFrame(new Frame(Frame.FLAG_PROBE, routerId, neighbor, "", "", timestamp.array()),
+                    neighbors.get(neighbor));
         }
+    }
+
+    //Folds one RTT sample into the link's smoothed RTT (gain 1/8 like TCP) and re-advertises
+    //the link cost if it moved far enough
+    private void probeReply(String neighbor, long rttNanos) throws Exception {
+        LinkProbe probe = linkProbes.get(neighbor);
+        if (probe == null || rttNanos < 0) return;
 
-        String nextHopId = entry.exitPortNeighborId;
-        InetSocketAddress outgoingAddress = neighbors.get(nextHopId);
+        long srtt = probe.srttNanos < 0 ? rttNanos : probe.srttNanos + (rttNanos - probe.srttNanos) / 8;
+        probe.srttNanos = srtt;
 
-        if (outgoingAddress == null) {
-            System.out.println("[DEBUG] No neighbor for " + nextHopId);
+        int cost = linkCost(srtt);
+        int delta = Math.abs(cost - probe.cost);
+        long now = System.currentTimeMillis();
+        if (delta == 0 || delta * 100 < probe.cost * costHysteresisPct || now - probe.costChangedAt < costHoldMs) {
             return;
         }
 
-        String newFrame = "0:" + routerId + ":" + nextHopId + ":" +
-                srcIP + ":" + destIP + ":" + message;
-
-        System.out.println("Router " + routerId + " FORWARDING:");
-        printFrame(routerId, nextHopId, srcIP, destIP, message);
+        Log.info("Link " + routerId + "-" + neighbor + " cost " + probe.cost + " -> " + cost +
+                " (srtt " + srtt / 1000 + " us)");
+        probe.cost = cost;
+        probe.costChangedAt = now;
+        originateLSA();
+    }
 
-        sendFrame(newFrame, outgoingAddress);
+    private int linkCost(long srttNanos) {
+        return (int) Math.min(0xFFFF, 1 + srttNanos / costUnitNanos);
     }
 
     // ===================== LINK STATE =====================
 
-    private void sendInitialLSA() throws Exception {
-        List<String> routerNeighbors = new ArrayList<>();
-        for (String neighborId : neighbors.keySet()) {
-            if (neighborId.startsWith("R")) {
-                routerNeighbors.add(neighborId);
+    //Builds a new instance of our own LSA and floods it
+    private void originateLSA() throws Exception {
+        List<String> routerNeighbors = liveRouterNeighborIds();
+        int[] costs = new int[routerNeighbors.size()];
+        for (int i = 0; i < costs.length; i++) {
+            LinkProbe probe = linkProbes.get(routerNeighbors.get(i));
+            costs[i] = probe == null ? 1 : probe.cost;
+        }
+        Lsa lsa = new Lsa(routerId, ++mySeq, 0,
+                new ArrayList<>(mySubnets), routerNeighbors, costs);
+
+        installLSA(lsa);
+        floodLSA(lsa, null);
+    }
+
+    private void installLSA(Lsa lsa) {
+        LsaEntry entry = new LsaEntry(lsa, System.currentTimeMillis());
+        LsaEntry old = putLsa(entry);
+
+        if (old != null) {
+            for (String subnet : old.lsa.subnets) {
+                subnetToRouter.remove(subnet, lsa.routerId);
             }
         }
+        for (String subnet : lsa.subnets) {
+            subnetToRouter.put(subnet, lsa.routerId);
+        }
 
-        String subnetList = String.join(",", mySubnets);
-        String neighborList = String.join(",", routerNeighbors);
-        myLSA = routerId + ":" + subnetList + ":" + neighborList;
-        topology.put(routerId, new HashSet<>(routerNeighbors));
-        lsaDatabase.put(routerId, myLSA);
-        runDijkstra();
+        pendingSpf.set(entry.router);
+        scheduleSpf();
     }
 
-    private void processLSA(String message, String sender) throws Exception {
+    private LsaEntry lsaEntry(int router) {
+        return router >= 0 && router < lsaDatabase.length ? lsaDatabase[router] : null;
+    }
 
-        String[] parts = message.split(":", -1);
+    private LsaEntry lsaEntry(String router) {
+        return lsaEntry(NodeIds.find(router));
+    }
 
-        if (parts.length < 3) {
-            System.out.println("[DEBUG] Malformed LSA: " + message);
-            return;
+    private LsaEntry putLsa(LsaEntry entry) {
+        if (entry.router >= lsaDatabase.length) {
+            lsaDatabase = Arrays.copyOf(lsaDatabase, Math.max(entry.router + 1, lsaDatabase.length * 2));
+        }
+        LsaEntry old = lsaDatabase[entry.router];
+        lsaDatabase[entry.router] = entry;
+        if (old == null) lsaCount++;
+        return old;
+    }
+
+    //Unpacks a batch: count(2) followed by that many LSAs
+    private void processLSA(byte[] payload, String sender) throws Exception {
+
+        ByteBuffer batch = ByteBuffer.wrap(payload);
+        int count = batch.remaining() >= 2 ? batch.getShort() & 0xFFFF : 0;
+
+        for (int i = 0; i < count; i++) {
+            Lsa lsa = Lsa.decode(batch);
+
+            if (lsa == null) {
+                // Lengths inside the batch can no longer be trusted, drop the rest
+                Log.warn("Malformed LSA or bad checksum from " + sender);
+                return;
+            }
+            processLSA(lsa, sender);
         }
+    }
 
-        String router = parts[0];
+    private void processLSA(Lsa lsa, String sender) throws Exception {
 
-        String old = lsaDatabase.get(router);
-        if (message.equals(old)) {
+        lsasProcessed.increment();
+        LsaEntry current = lsaEntry(lsa.routerId);
+
+        if (lsa.routerId.equals(routerId)) {
+            sendAck(lsa, sender);
+            acknowledged(sender, lsa.routerId, lsa.seq);
+            if (lsa.seq > mySeq) {
+                // Our LSA from before a restart is still around, outrun it
+                mySeq = lsa.seq;
+                originateLSA();
+            }
             return;
         }
 
-        lsaDatabase.put(router, message);
+        if (lsa.age >= lsaMaxAgeSec) {
+            sendAck(lsa, sender);
+            if (current == null) return;
+            if (lsa.seq < current.lsa.seq) {
+                sendLSA(current.lsa, sender);
+            } else if (isMaxAge(current)) {
+                // Already being flushed, the sender has it
+                acknowledged(sender, lsa.routerId, lsa.seq);
+            } else {
+                flushLSA(lsa, sender);
+            }
+            return;
+        }
 
-        String[] subnets = parts[1].isEmpty() ? new String[0] : parts[1].split(",");
-        String[] neighborList = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+        if (current == null || lsa.isNewerThan(current.lsa)) {
+            installLSA(lsa);
+            sendAck(lsa, sender);
+            floodLSA(lsa, sender);
 
-        for (String subnet : subnets) {
-            subnetToRouter.put(subnet, router);
+            if (Log.isDebug()) {
+                Log.debug(routerId + " learned LSA from " + lsa.routerId +
+                        " seq=" + lsa.seq +
+                        " subnets=" + lsa.subnets +
+                        " neighbors=" + lsa.neighbors);
+            }
+        } else if (lsa.seq == current.lsa.seq) {
+            // Duplicate, which also tells us the sender has it
+            sendAck(lsa, sender);
+            acknowledged(sender, lsa.routerId, lsa.seq);
+        } else {
+            // The sender is behind, give it our newer copy
+            sendLSA(current.lsa, sender);
         }
+    }
 
-        Set<String> routerNeighbors = new HashSet<>();
-        for (String neighborId : neighborList) {
-            if (neighborId.startsWith("R")) {
-                routerNeighbors.add(neighborId);
+    private void floodLSA(Lsa lsa, String sender) throws Exception {
+        for (String neighbor : liveRouterNeighborIds()) {
+            if (sender != null && neighbor.equals(sender)) continue;
+            sendLSA(lsa, neighbor);
+        }
+    }
+
+    //Sends an LSA and keeps it for retransmission until the neighbor acknowledges it
+    private void sendLSA(Lsa lsa, String neighbor) throws Exception {
+        unacked.computeIfAbsent(neighbor, k -> new HashMap<>()).put(lsa.routerId, lsa);
+        transmitLSA(lsa, neighbor);
+    }
+
+    private void transmitLSA(Lsa lsa, String neighbor) {
+        LsaEntry entry = lsaEntry(lsa.routerId);
+        if (entry != null && entry.lsa.seq == lsa.seq) {
+            lsa = lsa.withAge(entry.age(System.currentTimeMillis()));
+        }
+
+        floodQueue(neighbor).lsas.put(lsa.routerId, lsa);
+        scheduleFlush(neighbor);
+    }
+
+    private void retransmitLSAs() {
+        for (Map.Entry<String, Map<String, Lsa>> pending : unacked.entrySet()) {
+            for (Lsa lsa : pending.getValue().values()) {
+                transmitLSA(lsa, pending.getKey());
             }
         }
+    }
+
+    private void sendAck(Lsa lsa, String neighbor) {
+        floodQueue(neighbor).acks.add(lsa);
+        scheduleFlush(neighbor);
+    }
 
-        topology.put(router, routerNeighbors);
+    //Unpacks a batch of acks: count(2) followed by that many (routerId, seq)
+    private void processAck(byte[] payload, String sender) {
+        try {
+            ByteBuffer batch = ByteBuffer.wrap(payload);
+            int count = batch.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                String lsaRouter = Lsa.getString(batch);
+                int seq = batch.getInt();
+                acknowledged(sender, lsaRouter, seq);
+            }
+        } catch (RuntimeException e) {
+            Log.warn("Malformed LSA ack from " + sender);
+        }
+    }
 
-        floodLSA(message, sender);
+    private FloodQueue floodQueue(String neighbor) {
+        return floodQueues.computeIfAbsent(neighbor, k -> new FloodQueue());
+    }
 
-        System.out.println("[DEBUG] " + routerId + " learned LSA from " + router +
-                " subnets=" + Arrays.toString(subnets) +
-                " neighbors=" + Arrays.toString(neighborList));
+    private void scheduleFlush(String neighbor) {
+        FloodQueue queue = floodQueue(neighbor);
+        if (queue.flushScheduled) return;
 
-        runDijkstra();
+        queue.flushScheduled = true;
+        controlPlane.schedule(control(() -> flush(neighbor)), lsaFlushMs, TimeUnit.MILLISECONDS);
     }
 
-    private void floodLSA(String message, String sender) throws Exception {
-        for (String neighbor : neighbors.keySet()) {
+    //Sends everything queued for a neighbor, as many LSAs or acks per datagram as fit
+    private void flush(String neighbor) throws Exception {
+        FloodQueue queue = floodQueue(neighbor);
+        queue.flushScheduled = false;
+
+        int capacity = lsaMaxDatagram - Frame.HEADER_LEN;
+
+        List<Lsa> lsas = new ArrayList<>(queue.lsas.values());
+        queue.lsas.clear();
+        int i = 0;
+        while (i < lsas.size()) {
+            // An LSA bigger than the limit still goes out, alone
+            ByteBuffer batch = ByteBuffer.allocate(Math.max(capacity, 2 + lsas.get(i).encodedLength()));
+            batch.putShort((short) 0);
+            int count = 0;
+            while (i < lsas.size() && count < 0xFFFF
+                    && lsas.get(i).encodedLength() <= batch.remaining()) {
+                lsas.get(i++).encode(batch);
+                count++;
+            }
+            batch.putShort(0, (short) count);
+            lsasSent.add(count);
+            sendControl(Frame.FLAG_LSA, neighbor, batch);
+        }
 
-            if (!neighbor.startsWith("R")) {
-                continue;
+        List<Lsa> acks = new ArrayList<>(queue.acks);
+        queue.acks.clear();
+        i = 0;
+        while (i < acks.size()) {
+            // Like an LSA, an ack that does not fit the limit still goes out alone
+            ByteBuffer batch = ByteBuffer.allocate(Math.max(capacity, 2 + ackLength(acks.get(i))));
+            batch.putShort((short) 0);
+            int count = 0;
+            while (i < acks.size() && count < 0xFFFF && ackLength(acks.get(i)) <= batch.remaining()) {
+                Lsa.putString(batch, acks.get(i).routerId);
+                batch.putInt(acks.get(i).seq);
+                i++;
+                count++;
             }
+            batch.putShort(0, (short) count);
+            sendControl(Frame.FLAG_LSA_ACK, neighbor, batch);
+        }
+    }
 
-            if (sender != null && neighbor.equals(sender)) continue;
+    //Bytes of one ack entry: router ID and sequence number
+    private static int ackLength(Lsa lsa) {
+        return 1 + lsa.routerId.length() + 4;
+    }
+
+    private void sendControl(byte flag, String neighbor, ByteBuffer payload) throws Exception {
+        InetSocketAddress address = neighbors.get(neighbor);
+        if (address == null) return;
+
+        byte[] bytes = Arrays.copyOf(payload.array(), payload.position());
+        sendFrame(new Frame(flag, routerId, neighbor, "", "", bytes), address);
+    }
+
+    private void acknowledged(String neighbor, String lsaRouter, int seq) {
+        Map<String, Lsa> pending = unacked.get(neighbor);
+        if (pending == null) return;
+
+        Lsa lsa = pending.get(lsaRouter);
+        if (lsa != null && lsa.seq <= seq) {
+            pending.remove(lsaRouter);
+            removeIfFlushed(lsaRouter);
+        }
+    }
 
-            String frame = "1:" + routerId + ":" + neighbor + ":::" + message;
+    private void requestDatabase() throws Exception {
+        for (String neighbor : routerNeighborIds()) {
+            Frame frame = new Frame(Frame.FLAG_DB_REQUEST, routerId, neighbor, "", "", new byte[0]);
             sendFrame(frame, neighbors.get(neighbor));
         }
     }
 
-    private void floodAllKnownLSAs() throws Exception {
-        for (String lsaMessage : lsaDatabase.values()) {
-            floodLSA(lsaMessage, null);
+    //A neighbor (re)started, bring it up to date with everything we know
+    private void processDatabaseRequest(String sender) throws Exception {
+        if (!neighbors.containsKey(sender)) return;
+
+        for (LsaEntry entry : lsaDatabase) {
+            if (entry != null) sendLSA(entry.lsa, sender);
         }
     }
 
-    private void runDijkstra() {
+    //Flushes LSAs whose originator stopped refreshing them
+    private void ageLSAs() throws Exception {
+        long now = System.currentTimeMillis();
 
-        Map<String, Integer> dist = new HashMap<>();
-        Map<String, String> prev = new HashMap<>();
+        for (int i = 0; i < lsaDatabase.length; i++) {
+            LsaEntry entry = lsaDatabase[i];
+            if (entry == null || entry.lsa.routerId.equals(routerId) || isMaxAge(entry)
+                    || entry.age(now) < lsaMaxAgeSec) continue;
 
-        for (String node : topology.keySet()) {
-            dist.put(node, Integer.MAX_VALUE);
+            Log.info("LSA from " + entry.lsa.routerId + " reached max age, flushing");
+            flushLSA(entry.lsa.withAge(lsaMaxAgeSec), null);
         }
+    }
 
-        dist.put(routerId, 0);
+    //Withdraws an LSA at max age: its subnets and links leave the routes right away, the max-age
+    //copy is flooded so the other routers withdraw it too, and the entry stays in the database,
+    //answering duplicates, until every neighbor it went to has acknowledged it
+    private void flushLSA(Lsa lsa, String sender) throws Exception {
+        LsaEntry entry = new LsaEntry(lsa, System.currentTimeMillis());
+        LsaEntry old = putLsa(entry);
+        if (old != null) {
+            for (String subnet : old.lsa.subnets) {
+                subnetToRouter.remove(subnet, lsa.routerId);
+            }
+        }
+        for (Map<String, Lsa> pending : unacked.values()) {
+            pending.remove(lsa.routerId);
+        }
+        pendingSpf.set(entry.router);
+        scheduleSpf();
 
-        PriorityQueue<String> pq = new PriorityQueue<>(Comparator.comparingInt(dist::get));
-        pq.add(routerId);
+        floodLSA(lsa, sender);
+        removeIfFlushed(lsa.routerId);
+    }
 
-        while (!pq.isEmpty()) {
-            String current = pq.poll();
+    private boolean isMaxAge(LsaEntry entry) {
+        return entry.lsa.age >= lsaMaxAgeSec;
+    }
 
-            for (String neighbor : topology.getOrDefault(current, Collections.emptySet())) {
+    //Drops a flushed LSA from the database once no neighbor still has to acknowledge it
+    private void removeIfFlushed(String router) {
+        LsaEntry entry = lsaEntry(router);
+        if (entry == null || !isMaxAge(entry)) return;
+        for (Map<String, Lsa> pending : unacked.values()) {
+            if (pending.containsKey(router)) return;
+        }
 
-                int alt = dist.get(current) + 1;
+        lsaDatabase[entry.router] = null;
+        lsaCount--;
+        Log.info("LSA from " + router + " flushed, removed");
+    }
 
-                if (alt < dist.getOrDefault(neighbor, Integer.MAX_VALUE)) {
-                    dist.put(neighbor, alt);
-                    prev.put(neighbor, current);
-                    pq.add(neighbor);
-                }
+    //After a neighbor's unacknowledged LSAs were dropped, some flushes may be complete
+    private void removeFlushedLSAs() {
+        for (LsaEntry entry : lsaDatabase) {
+            if (entry != null) removeIfFlushed(entry.lsa.routerId);
+        }
+    }
+
+    private List<String> routerNeighborIds() {
+        List<String> routerNeighbors = new ArrayList<>();
+        for (String neighborId : neighbors.keySet()) {
+            if (neighborId.startsWith("R")) {
+                routerNeighbors.add(neighborId);
             }
         }
+        return routerNeighbors;
+    }
 
-        buildForwardingTable(prev);
+    //Router neighbors whose hellos are arriving
+    private List<String> liveRouterNeighborIds() {
+        List<String> live = new ArrayList<>();
+        for (String neighborId : routerNeighborIds()) {
+            Adjacency adjacency = adjacencies.get(neighborId);
+            if (adjacency == null || adjacency.up) {
+                live.add(neighborId);
+            }
+        }
+        return live;
     }
 
-    private void buildForwardingTable(Map<String, String> prev) {
+    //Schedules a route computation, forwarding keeps using the current table until it has run
+    private void scheduleSpf() {
+        if (changePendingSince == 0) changePendingSince = System.nanoTime();
+        if (spfScheduled) return;
+
+        long now = System.currentTimeMillis();
+        long delay;
+        if (now - lastSpfRun > spfMaxHoldMs) {
+            // Quiet for a while, react quickly and start over with the shortest hold
+            spfCurrentHoldMs = spfHoldMs;
+            delay = spfInitialDelayMs;
+        } else {
+            delay = Math.max(spfInitialDelayMs, lastSpfRun + spfCurrentHoldMs - now);
+            spfCurrentHoldMs = Math.min(spfCurrentHoldMs * 2, spfMaxHoldMs);
+        }
+
+        spfScheduled = true;
+        controlPlane.schedule(control(() -> {
+            spfScheduled = false;
+            runSpf();
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    //Applies the changed adjacencies of all pending routers to the shortest path tree
+    private void runSpf() {
+        lastSpfRun = System.currentTimeMillis();
+        long start = System.nanoTime();
+
+        boolean routesChanged = false;
+        for (int r = pendingSpf.nextSetBit(0); r >= 0; r = pendingSpf.nextSetBit(r + 1)) {
+            LsaEntry entry = lsaEntry(r);
+            routesChanged |= entry == null || isMaxAge(entry)
+                    ? spf.update(r, NO_NEIGHBORS)
+                    : spf.update(r, entry.routerNeighbors, entry.routerCosts);
+        }
+        pendingSpf.clear();
+
+        if (routesChanged) {
+            buildForwardingTable();
+        } else {
+            // Only the subnets may have changed
+            publishSnapshot(snapshot.forwardingTable);
+        }
+
+        long end = System.nanoTime();
+        spfRuns.increment();
+        spfDuration.record((end - start) / 1000);
+        if (changePendingSince != 0) {
+            convergence.record((end - changePendingSince) / 1000);
+            changePendingSince = 0;
+        }
+        if (failurePendingSince != 0) {
+            reconvergence.record((end - failurePendingSince) / 1000);
+            failurePendingSince = 0;
+        }
+    }
 
-        forwardingTable.clear();
+    //Forwarding table indexed by NodeIds number of the destination router
+    private void buildForwardingTable() {
 
-        for (String dest : prev.keySet()) {
+        ForwardingEntry[] forwardingTable = forwardingTable(spf, maxPaths);
 
-            String nextHop = dest;
+        publishSnapshot(forwardingTable);
 
-            while (prev.containsKey(nextHop) && !prev.get(nextHop).equals(routerId)) {
-                nextHop = prev.get(nextHop);
+        if (Log.isDebug()) {
+            StringBuilder table = new StringBuilder("Updated Forwarding Table for " + routerId + ":");
+            for (int dest = 0; dest < forwardingTable.length; dest++) {
+                if (forwardingTable[dest] != null) {
+                    table.append(System.lineSeparator())
+                            .append(NodeIds.name(dest)).append(" -> ")
+                            .append(String.join(",", forwardingTable[dest].exitPortNeighborIds));
+                }
             }
+            Log.debug(table.toString());
+        }
+    }
+
+    //Up to maxPaths equal cost exits toward every router the tree reaches, null for the others
+    static ForwardingEntry[] forwardingTable(Spf spf, int maxPaths) {
+        ForwardingEntry[] forwardingTable = new ForwardingEntry[spf.size()];
 
-            if (prev.containsKey(nextHop)) {
-                forwardingTable.put(dest, new ForwardingEntry(nextHop, null));
+        for (int dest = 0; dest < forwardingTable.length; dest++) {
+            int[] hops = spf.firstHops(dest);
+            if (hops.length > 0) {
+                String[] exits = new String[Math.min(hops.length, maxPaths)];
+                for (int i = 0; i < exits.length; i++) {
+                    exits[i] = NodeIds.name(hops[i]);
+                }
+                forwardingTable[dest] = new ForwardingEntry(exits, null);
+            }
+        }
+        return forwardingTable;
+    }
+
+    private void publishSnapshot(ForwardingEntry[] forwardingTable) {
+        snapshot = new ForwardingSnapshot(forwardingTable, buildFib(forwardingTable), snapshot.generation + 1);
+        lastFibUpdate = System.nanoTime();
+    }
+
+    //Resolves every known subnet down to the socket address and MAC of the next hop
+    private Fib buildFib(ForwardingEntry[] forwardingTable) {
+
+        InetSocketAddress lanNeighbor = null;
+        int lanMtu = Topology.DEFAULT_MTU;
+        for (String neighborId : neighbors.keySet()) {
+            if (neighborId.startsWith("S")) {
+                lanNeighbor = neighbors.get(neighborId);
+                lanMtu = linkMtu(neighborId);
+                break;
             }
         }
 
-        System.out.println("\n[DEBUG] Updated Forwarding Table for " + routerId + ":");
-        for (String dest : forwardingTable.keySet()) {
-            System.out.println(dest + " -> " + forwardingTable.get(dest).exitPortNeighborId);
+        List<Fib.Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, String> e : subnetToRouter.entrySet()) {
+            String subnet = e.getKey();
+            String destRouter = e.getValue();
+
+            if (destRouter.equals(routerId)) {
+                if (lanNeighbor != null) {
+                    entries.add(new Fib.Entry(subnet, lanNeighbor, null, lanMtu));
+                }
+                continue;
+            }
+
+            int dest = NodeIds.find(destRouter);
+            ForwardingEntry entry = dest >= 0 && dest < forwardingTable.length ? forwardingTable[dest] : null;
+            if (entry == null) continue;
+
+            // Exit ports we have no address for are left out, the others keep the traffic
+            List<String> exits = new ArrayList<>();
+            List<InetSocketAddress> egress = new ArrayList<>();
+            for (String exit : entry.exitPortNeighborIds) {
+                InetSocketAddress address = neighbors.get(exit);
+                if (address != null) {
+                    exits.add(exit);
+                    egress.add(address);
+                }
+            }
+            if (!exits.isEmpty()) {
+                int[] mtu = new int[exits.size()];
+                for (int i = 0; i < mtu.length; i++) mtu[i] = linkMtu(exits.get(i));
+                entries.add(new Fib.Entry(subnet,
+                        egress.toArray(new InetSocketAddress[0]), exits.toArray(new String[0]), mtu));
+            }
         }
+        return new Fib(entries);
+    }
+
+    private int linkMtu(String neighborId) {
+        return linkMtus.getOrDefault(neighborId, Topology.DEFAULT_MTU);
     }
 
     // ===================== UTIL =====================
 
-    private void sendFrame(String frame, InetSocketAddress address) throws Exception {
+    private void sendFrame(Frame frame, InetSocketAddress address) throws Exception {
+        queueControl(ByteBuffer.wrap(frame.toBytes()), address);
+    }
+
+    //Control frames go ahead of all data waiting for the neighbor, see EgressQueue
+    private void queueControl(ByteBuffer frame, InetSocketAddress address) throws Exception {
+        if (address == null) return;
+
+        EgressQueue queue = egressQueues.get(address);
+        int len = frame.remaining();
+        if (queue != null ? queue.offerControl(frame) : sendNow(frame, address)) {
+            controlBytesSent.add(len);
+            controlFramesSent.increment();
+        }
+    }
+
+    //Sends on the calling thread, for neighbors without an egress queue
+    private boolean sendNow(ByteBuffer frame, InetSocketAddress address) throws Exception {
+        if (!transport.send(frame, address)) {
+            if (Log.isDebug()) Log.debug("Send buffer full, dropped frame to " + address);
+            return false;
+        }
+        neighborCounters(address).packetsOut.increment();
+        return true;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public long getTruncatedFrames() {
+        return truncatedFrames.sum();
+    }
+
+    public String bufferStats() {
+        return "buffers[" + bufferPool + "] truncated=" + getTruncatedFrames();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    //Packet counters and egress queue of a neighbor, plus link cost and liveness state if it is a
+    //router. Done before the workers start and on the control plane for neighbors added later.
+    private void attachNeighbor(String neighborId, InetSocketAddress address) {
+        neighbors.put(neighborId, address);
+        NeighborCounters counters = new NeighborCounters(metrics, neighborId);
+        neighborCounters.put(address, counters);
+        if (EgressQueue.DATA_FRAMES > 0) {
+            if (bufferPoolPerQueue) bufferPool.resize(bufferPool.capacity() + EgressQueue.DATA_FRAMES);
+            EgressQueue queue =
+                    new EgressQueue(neighborId, address, transport, bufferPool, metrics, counters.packetsOut);
+            egressQueues.put(address, queue);
+            queue.start();
+        }
+        if (!neighborId.startsWith("R")) return;
+
+        LinkProbe probe = new LinkProbe();
+        linkProbes.put(neighborId, probe);
+        metrics.gauge("router_link_rtt_us", "neighbor", neighborId,
+                () -> probe.srttNanos < 0 ? -1 : probe.srttNanos / 1000);
+        metrics.gauge("router_link_cost", "neighbor", neighborId, () -> probe.cost);
+
+        Adjacency adjacency = new Adjacency(neighborId, routerId);
+        adjacencies.put(neighborId, adjacency);
+        adjacenciesByAddress.put(address, adjacency);
+        metrics.gauge("router_neighbor_up", "neighbor", neighborId, () -> adjacency.up ? 1 : 0);
+    }
+
+    //Forgets everything about a neighbor that is no longer in the config
+    private void detachNeighbor(String neighborId) {
+        InetSocketAddress address = neighbors.remove(neighborId);
+        if (address == null) return;
+
+        neighborCounters.remove(address);
+        EgressQueue queue = egressQueues.remove(address);
+        if (queue != null) {
+            queue.close();
+            if (bufferPoolPerQueue) bufferPool.resize(bufferPool.capacity() - EgressQueue.DATA_FRAMES);
+        }
+        linkMtus.remove(neighborId);
+        linkProbes.remove(neighborId);
+        adjacencies.remove(neighborId);
+        adjacenciesByAddress.remove(address);
+        unacked.remove(neighborId);
+        removeFlushedLSAs();
+        floodQueues.remove(neighborId);
+        metrics.remove("neighbor", neighborId);
+    }
+
+    //Gauges over state that is kept elsewhere
+    private void registerMetrics() {
+        unknownNeighbor = new NeighborCounters(metrics, "unknown");
+        metrics.gauge("router_lsdb_size", () -> lsaCount);
+        metrics.gauge("router_fib_size", () -> snapshot.fib.size());
+        metrics.gauge("router_buffers_available", bufferPool::available);
+        metrics.gauge("router_buffers_capacity", bufferPool::capacity);
+        metrics.gauge("router_buffer_hits", bufferPool::getHits);
+        metrics.gauge("router_buffer_misses", bufferPool::getMisses);
+        metrics.gauge("log_dropped", Log::getDropped);
+    }
+
+    private NeighborCounters neighborCounters(InetSocketAddress address) {
+        NeighborCounters counters = neighborCounters.get(address);
+        return counters != null ? counters : unknownNeighbor;
+    }
+
+    public long getControlBytesSent() {
+        return controlBytesSent.sum();
+    }
+
+    public long getControlBytesReceived() {
+        return controlBytesReceived.sum();
+    }
+
+    private void printStats() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastStatsTime) / 1000.0;
+        long sent = getControlBytesSent();
+        long received = getControlBytesReceived();
+        long frames = controlFramesSent.sum();
+        long lsas = lsasSent.sum();
+
+        Log.info(String.format("[STATS] %s control-plane tx=%.0f B/s rx=%.0f B/s frames=%.1f/s lsas=%.1f/s lsdb=%d %s",
+                routerId,
+                (sent - lastControlBytesSent) / seconds,
+                (received - lastControlBytesReceived) / seconds,
+                (frames - lastControlFramesSent) / seconds,
+                (lsas - lastLsasSent) / seconds,
+                lsaCount,
+                bufferStats()));
+
+        lastStatsTime = now;
+        lastControlBytesSent = sent;
+        lastControlBytesReceived = received;
+        lastControlFramesSent = frames;
+        lastLsasSent = lsas;
+    }
+
+    //Wraps control-plane work so one failure does not cancel a scheduled task
+    private Runnable control(ControlTask task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.error("Control-plane task failed", e);
+            }
+        };
+    }
 
-        byte[] data = frame.getBytes();
+    //One-line description of a data frame for debug output
+    private static String frameString(ByteBuffer buf) {
+        int start = buf.position();
+        byte[] message = new byte[Frame.payloadLength(buf)];
+        buf.get(start + Frame.HEADER_LEN, message);
+
+        return "srcMAC=" + Frame.readField(buf, start + Frame.SRC_MAC_OFFSET, Frame.MAC_LEN) +
+                " dstMAC=" + Frame.readField(buf, start + Frame.DST_MAC_OFFSET, Frame.MAC_LEN) +
+                " srcIP=" + Frame.readField(buf, start + Frame.SRC_IP_OFFSET, Frame.IP_LEN) +
+                " dstIP=" + Frame.readField(buf, start + Frame.DST_IP_OFFSET, Frame.IP_LEN) +
+                " message=" + new String(message, StandardCharsets.UTF_8);
+    }
 
-        DatagramPacket packet =
-                new DatagramPacket(data, data.length,
-                        address.getAddress(), address.getPort());
+    public String getRouterId() {
+        return routerId;
+    }
 
-        socket.send(packet);
+    //Number of subnets the forwarding path can currently reach
+    public int getFibSize() {
+        return snapshot.fib.size();
     }
 
-    private void printFrame(String srcMAC, String destMAC,
-                            String srcIP, String destIP,
-                            String message) {
+    //System.nanoTime() of the last forwarding table change, 0 before the first one
+    public long getLastFibUpdate() {
+        return lastFibUpdate;
+    }
 
-        System.out.println("Source MAC: " + srcMAC);
-        System.out.println("Dest MAC: " + destMAC);
-        System.out.println("Source IP: " + srcIP);
-        System.out.println("Dest IP: " + destIP);
-        System.out.println("Message: " + message);
+    public int getLsdbSize() {
+        return lsaCount;
     }
 
     public void addNeighbor(String neighborId, String ip, int port) {
+        addNeighbor(neighborId, ip, port, Topology.DEFAULT_MTU);
+    }
+
+    public void addNeighbor(String neighborId, String ip, int port, int mtu) {
         neighbors.put(neighborId,
                 new InetSocketAddress(ip, port));
+        linkMtus.put(neighborId, mtu);
+    }
+
+    // ===================== RECONFIGURATION =====================
+
+    //Takes over the neighbors and subnets a changed config gives this router. Only the difference
+    //is applied, on the control plane, while the workers keep forwarding on the current tables.
+    public void reconfigure(Topology topology) {
+        Map<String, InetSocketAddress> configured = new HashMap<>();
+        Map<String, Integer> mtus = new HashMap<>();
+        for (String neighborId : topology.getNeighborIds(routerId)) {
+            InetSocketAddress address = topology.getAddress(neighborId);
+            if (address != null) {
+                configured.put(neighborId, address);
+                mtus.put(neighborId, topology.getLinkMtu(routerId, neighborId));
+            }
+        }
+        Set<String> subnets = new HashSet<>();
+        for (String iface : topology.getVirtualIps(routerId)) {
+            subnets.add(iface.split("\\.")[0]);
+        }
+        controlPlane.execute(control(() -> reconfigure(configured, mtus, subnets)));
+    }
+
+    private void reconfigure(Map<String, InetSocketAddress> configured, Map<String, Integer> mtus,
+                             Set<String> subnets) throws Exception {
+        List<String> changes = new ArrayList<>();
+
+        for (String neighborId : new ArrayList<>(neighbors.keySet())) {
+            InetSocketAddress address = configured.get(neighborId);
+            if (!neighbors.get(neighborId).equals(address)) {
+                detachNeighbor(neighborId);
+                changes.add("-" + neighborId);
+            }
+        }
+        for (Map.Entry<String, InetSocketAddress> e : configured.entrySet()) {
+            String neighborId = e.getKey();
+            int mtu = mtus.get(neighborId);
+            if (neighbors.containsKey(neighborId)) {
+                if (linkMtu(neighborId) != mtu) {
+                    linkMtus.put(neighborId, mtu);
+                    changes.add(neighborId + " MTU " + mtu);
+                }
+                continue;
+            }
+
+            linkMtus.put(neighborId, mtu);
+            attachNeighbor(neighborId, e.getValue());
+            changes.add("+" + neighborId);
+            if (neighborId.startsWith("R")) {
+                sendFrame(new Frame(Frame.FLAG_DB_REQUEST, routerId, neighborId, "", "", new byte[0]),
+                        e.getValue());
+            }
+        }
+
+        for (String subnet : new ArrayList<>(mySubnets)) {
+            if (!subnets.contains(subnet)) {
+                mySubnets.remove(subnet);
+                changes.add("-" + subnet);
+            }
+        }
+        for (String subnet : subnets) {
+            if (mySubnets.add(subnet)) {
+                changes.add("+" + subnet);
+            }
+        }
+
+        if (changes.isEmpty()) return;
+        Log.info("Router " + routerId + " reconfigured: " + String.join(" ", changes));
+        // Installing it also moves our subnets in subnetToRouter and rebuilds the tables
+        originateLSA();
     }
 
     public static void main(String[] args) throws Exception {
@@ -329,23 +1441,35 @@ public class Router {
 
         String id = args[0];
 
-        Parser parser = new Parser("Config");
+        Topology topology = Topology.load("Config");
 
-        InetSocketAddress myAddr = parser.getAddress(id);
+        InetSocketAddress myAddr = topology.getAddress(id);
         if (myAddr == null) {
             System.out.println("Router ID not found in config: " + id);
             return;
         }
 
-        Router router = new Router(id, myAddr.getPort());
+        Router router = fromConfig(topology, id, new UdpTransport(myAddr));
+        AdminServer.start(router.getMetrics(), myAddr.getPort());
+        router.startWorkers();
+        // Not before: a reload attaches neighbors, which needs the buffer pool startWorkers sets up
+        ConfigWatcher.watch("Config", router::reconfigure);
+        router.receiveLoop();
+    }
+
+    //Router with the neighbors and subnets the config gives it, not started yet
+    public static Router fromConfig(Topology topology, String id, Transport transport) {
+
+        Router router = new Router(id, transport);
 
-        for (String neighborId : parser.getNeighborIds(id)) {
-            InetSocketAddress addr = parser.getAddress(neighborId);
+        for (String neighborId : topology.getNeighborIds(id)) {
+            InetSocketAddress addr = topology.getAddress(neighborId);
             router.addNeighbor(neighborId,
                     addr.getAddress().getHostAddress(),
-                    addr.getPort());
+                    addr.getPort(),
+                    topology.getLinkMtu(id, neighborId));
         }
-        List<String> interfaces = parser.getVirtualIps(id);
+        List<String> interfaces = topology.getVirtualIps(id);
 
         for (String iface : interfaces) {
             String subnet = iface.split("\\.")[0];  // "net1" from "net1.R1"
@@ -354,6 +1478,6 @@ public class Router {
             router.subnetToRouter.put(subnet, id);
         }
 
-        router.start();
+        return router;
     }
 }
\ No newline at end of file
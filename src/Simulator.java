@@ -0,0 +1,192 @@
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+//Runs every node of a config in one JVM over MemoryTransport
+//Usage: java Simulator <config file>
+//       java Simulator <routers> <hosts>      (topology from TopologyGenerator)
+//
+//Starts all routers, switches and hosts at once and reports how long the routers take to
+//converge: every LSDB holds all routers and no forwarding table has changed for -Dsim.quietMs.
+//Then, if there are at least two hosts, each host runs the Host load mode against the next one
+//for -Dsim.trafficSeconds, and the delivered frame rate and every receiver's summary are reported.
+//Unless set otherwise, routers get one worker and a small buffer pool, periodic stats are off and
+//only warnings are logged, so thousands of nodes fit in one process. Hellos go out every second
+//and a neighbor is only declared down after 10 missed ones: in one process the routers share the
+//CPUs with the load, and a hello held up behind data is not a failed link.
+public class Simulator {
+
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "router.workers", "1",
+            "router.bufferCount", "2",
+            "router.bufferSize", "4096",
+            "router.statsIntervalMs", "3600000",
+            "router.helloMs", "1000",
+            "router.deadMultiplier", "10",
+            "switch.statsIntervalMs", "3600000",
+            "log.level", "WARN");
+
+    private final long quietMs = Long.getLong("sim.quietMs", 1000);
+    private final long timeoutMs = Long.getLong("sim.timeoutMs", 120_000);
+    private final int trafficSeconds = Integer.getInteger("sim.trafficSeconds", 5);
+
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private final List<Router> routers = new ArrayList<>();
+    private final List<Switch> switches = new ArrayList<>();
+    private final List<Host> hosts = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        for (Map.Entry<String, String> e : DEFAULTS.entrySet()) {
+            if (System.getProperty(e.getKey()) == null) {
+                System.setProperty(e.getKey(), e.getValue());
+            }
+        }
+
+        Path config;
+        if (args.length == 1) {
+            config = Path.of(args[0]);
+        } else if (args.length == 2) {
+            config = Files.createTempFile("sim-config", "");
+            config.toFile().deleteOnExit();
+            TopologyGenerator.writeConfig(config,
+                    TopologyGenerator.randomTopology(Integer.parseInt(args[0]),
+                            Integer.getInteger("gen.degree", 4),
+                            new Random(Long.getLong("gen.seed", 1))),
+                    Integer.parseInt(args[1]));
+        } else {
+            System.out.println("Usage: java Simulator <config file> | <routers> <hosts>");
+            return;
+        }
+
+        Simulator sim = new Simulator();
+        sim.load(Topology.load(config.toString()));
+        sim.run();
+        System.exit(0);
+    }
+
+    //Creates every device of the config on the in-memory network, without starting it
+    private void load(Topology topology) {
+        long t0 = System.nanoTime();
+        for (String id : topology.getDeviceIds()) {
+            InetSocketAddress address = topology.getAddress(id);
+            MemoryTransport transport = network.bind(address);
+
+            if (id.startsWith("R")) {
+                routers.add(Router.fromConfig(topology, id, transport));
+            } else if (id.startsWith("S")) {
+                switches.add(Switch.fromConfig(topology, id, transport));
+            } else {
+                hosts.add(Host.fromConfig(topology, id, transport));
+            }
+        }
+        System.out.printf("Loaded %d routers, %d switches, %d hosts in %.1f ms%n",
+                routers.size(), switches.size(), hosts.size(), (System.nanoTime() - t0) / 1e6);
+    }
+
+    private void run() throws Exception {
+        long start = System.nanoTime();
+
+        for (Switch sw : switches) {
+            daemon("Sim-" + sw.getSwitchId(), sw::start);
+        }
+        for (Host host : hosts) {
+            host.startReceiver();
+        }
+        for (Router router : routers) {
+            daemon("Sim-" + router.getRouterId(), () -> {
+                try {
+                    router.start();
+                } catch (Exception e) {
+                    Log.error("Router " + router.getRouterId() + " stopped", e);
+                }
+            });
+        }
+
+        long converged = awaitConvergence(start);
+        if (converged < 0) {
+            System.out.println("Routers did not converge within " + timeoutMs + " ms");
+            return;
+        }
+        System.out.printf("Converged in %.1f ms (%d routers, %d datagrams, %d dropped)%n",
+                (converged - start) / 1e6, routers.size(), network.getDelivered(), network.getDropped());
+
+        if (hosts.size() >= 2) {
+            traffic();
+        }
+    }
+
+    //Time of the last forwarding table change once the network has been quiet, or -1 on timeout
+    private long awaitConvergence(long start) throws InterruptedException {
+        while (System.nanoTime() - start < timeoutMs * 1_000_000) {
+            Thread.sleep(20);
+
+            boolean complete = true;
+            long lastChange = 0;
+            for (Router router : routers) {
+                if (router.getLsdbSize() < routers.size()) {
+                    complete = false;
+                    break;
+                }
+                lastChange = Math.max(lastChange, router.getLastFibUpdate());
+            }
+            if (complete && lastChange != 0 && System.nanoTime() - lastChange >= quietMs * 1_000_000) {
+                return lastChange;
+            }
+        }
+        return -1;
+    }
+
+    //Every host sends load frames to the next one in a ring, as fast as it can
+    private void traffic() throws Exception {
+        LongAdder sent = new LongAdder();
+        long receivedBefore = received();
+        long deliveredBefore = network.getDelivered();
+        long droppedBefore = network.getDropped();
+
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < hosts.size(); i++) {
+            Host host = hosts.get(i);
+            String target = hosts.get((i + 1) % hosts.size()).getVirtualIp();
+            senders.add(daemon("Sim-Traffic-" + i, () -> {
+                try {
+                    sent.add(host.runLoad(List.of(target), 0, trafficSeconds * 1000L,
+                            Integer.getInteger("load.payload", 64)));
+                } catch (Exception e) {
+                    Log.error("Traffic from " + host.getVirtualIp() + " stopped", e);
+                }
+            }));
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        // Let the frames still in flight arrive
+        Thread.sleep(500);
+
+        long received = received() - receivedBefore;
+        System.out.printf("Traffic: %d hosts sent %d frames in %d s, %d received (%.0f frames/s, %.2f%% lost), " +
+                        "%d datagrams moved, %d dropped in queues%n",
+                hosts.size(), sent.sum(), trafficSeconds, received, (double) received / trafficSeconds,
+                100.0 * (sent.sum() - received) / Math.max(1, sent.sum()),
+                network.getDelivered() - deliveredBefore, network.getDropped() - droppedBefore);
+        for (Host host : hosts) {
+            System.out.print(host.getLoadSummary());
+        }
+    }
+
+    private long received() {
+        long sum = 0;
+        for (Host host : hosts) {
+            sum += host.getFramesReceived();
+        }
+        return sum;
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
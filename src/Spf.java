@@ -0,0 +1,595 @@
+import java.util.*;
+import java.util.function.ToIntBiFunction;
+
+//Shortest path tree rooted at one router, kept up to date one adjacency change at a time
+//
+//Nodes are NodeIds numbers and all per-node state lives in arrays indexed by them. Every link costs
+//what its tail advertises for it, at least 1. When several shortest paths tie, every first hop among
+//them is kept, sorted by node number, so the result does not depend on the order updates arrive in
+//and matches compute().
+public class Spf {
+
+    private static final int INF = Integer.MAX_VALUE;
+    private static final int[] NONE = new int[0];
+    private static final long[] NO_EDGES = new long[0];
+
+    private final int root;
+
+    // Advertised adjacencies and their reverse as packed edges (see edge()), each row sorted by node
+    private long[][] out = new long[0][];
+    private long[][] in = new long[0][];
+
+    // Distance from root and first hops (sorted neighbors of root, empty if none) for every node
+    private int[] dist = new int[0];
+    private int[][] firstHops = new int[0][];
+
+    // Scratch sets for one update, a node is in a set when its mark equals the current stamp
+    private int[] affected = new int[0];
+    private int[] distChanged = new int[0];
+    private int[] queued = new int[0];
+    private int[] expanded = new int[0];
+    private int stamp = 0;
+
+    public Spf(int root) {
+        this.root = root;
+        ensureCapacity(root + 1);
+        dist[root] = 0;
+    }
+
+    //Replaces the neighbors advertised by a node, every link costing 1
+    public boolean update(int node, int[] neighbors) {
+        return update(node, neighbors, null);
+    }
+
+    //Replaces the neighbors advertised by a node and the cost of the link to each of them,
+    //returns true if any first hop changed. Costs below 1 count as 1, a neighbor listed twice
+    //keeps its lowest cost.
+    public boolean update(int node, int[] neighbors, int[] costs) {
+
+        long[] newEdges = edges(neighbors, costs);
+        int max = node;
+        for (long e : newEdges) max = Math.max(max, target(e));
+        ensureCapacity(max + 1);
+
+        long[] oldEdges = out[node];
+        LongList removed = new LongList();
+        LongList added = new LongList();
+        diff(oldEdges, newEdges, removed, added);
+
+        // A link whose cost changed is in both lists, so removals go first
+        for (int k = 0; k < removed.size; k++) {
+            int v = target(removed.get(k));
+            in[v] = without(in[v], node);
+        }
+        for (int k = 0; k < added.size; k++) {
+            int v = target(added.get(k));
+            in[v] = with(in[v], edge(node, cost(added.get(k))));
+        }
+        out[node] = newEdges;
+
+        // Links out of an unreachable node cannot change anything
+        int du = dist[node];
+        if (du == INF || (removed.size == 0 && added.size == 0)) {
+            return false;
+        }
+
+        stamp++;
+        IntList changed = new IntList();
+
+        // Nodes that may have lost their shortest path: heads of removed tree links and,
+        // transitively, anything below them with no other equal cost parent left
+        IntList affectedNodes = new IntList();
+        LongHeap candidates = new LongHeap();
+        for (int k = 0; k < removed.size; k++) {
+            int v = target(removed.get(k));
+            if (dist[v] != INF && dist[v] == du + cost(removed.get(k))) candidates.add(key(dist[v], v));
+        }
+        while (!candidates.isEmpty()) {
+            int v = node(candidates.poll());
+            if (affected[v] == stamp) continue;
+
+            int dv = dist[v];
+            boolean supported = false;
+            for (long e : in[v]) {
+                int p = target(e);
+                if (affected[p] != stamp && dist[p] != INF && dist[p] + cost(e) == dv) {
+                    supported = true;
+                    break;
+                }
+            }
+            if (supported) continue;
+
+            affected[v] = stamp;
+            affectedNodes.add(v);
+            for (long e : out[v]) {
+                int w = target(e);
+                if (dist[w] != INF && dist[w] == dv + cost(e)) candidates.add(key(dist[w], w));
+            }
+        }
+
+        for (int k = 0; k < affectedNodes.size; k++) {
+            int v = affectedNodes.get(k);
+            dist[v] = INF;
+            markChanged(v, changed);
+        }
+
+        // Re-attach affected nodes from their best unaffected parent, then relax from there
+        LongHeap pq = new LongHeap();
+        for (int k = 0; k < affectedNodes.size; k++) {
+            int v = affectedNodes.get(k);
+            int best = INF;
+            for (long e : in[v]) {
+                int p = target(e);
+                if (dist[p] != INF && dist[p] + cost(e) < best) best = dist[p] + cost(e);
+            }
+            if (best != INF) {
+                dist[v] = best;
+                pq.add(key(best, v));
+            }
+        }
+        for (int k = 0; k < added.size; k++) {
+            int v = target(added.get(k));
+            int alt = du + cost(added.get(k));
+            if (alt < dist[v]) {
+                markChanged(v, changed);
+                dist[v] = alt;
+                pq.add(key(alt, v));
+            }
+        }
+        relax(pq, changed);
+
+        // First hops only need recomputing below nodes whose distance or parents changed
+        IntList dirty = new IntList();
+        dirty.addAll(changed);
+        for (int k = 0; k < removed.size; k++) dirty.add(target(removed.get(k)));
+        for (int k = 0; k < added.size; k++) dirty.add(target(added.get(k)));
+        return updateFirstHops(dirty);
+    }
+
+    public boolean update(String node, Set<String> neighbors) {
+        return update(NodeIds.intern(node), NodeIds.internAll(neighbors));
+    }
+
+    //Lowest numbered first hop toward a node, -1 if it is unreachable or the root
+    public int firstHop(int node) {
+        int[] hops = firstHops(node);
+        return hops.length > 0 ? hops[0] : -1;
+    }
+
+    //All equal cost first hops toward a node in ascending order, empty if it is unreachable or
+    //the root. The array is shared and must not be modified.
+    public int[] firstHops(int node) {
+        return node < firstHops.length ? firstHops[node] : NONE;
+    }
+
+    //Upper bound (exclusive) of the node numbers seen so far
+    public int size() {
+        return firstHops.length;
+    }
+
+    //Current first hops for every reachable destination, by name
+    public Map<String, List<String>> firstHops() {
+        Map<String, List<String>> result = new HashMap<>();
+        for (int v = 0; v < firstHops.length; v++) {
+            if (firstHops[v].length > 0) {
+                result.put(NodeIds.name(v), names(firstHops[v]));
+            }
+        }
+        return result;
+    }
+
+    private void relax(LongHeap pq, IntList changed) {
+        while (!pq.isEmpty()) {
+            long entry = pq.poll();
+            int current = node(entry);
+            if (distance(entry) != dist[current]) continue;  // stale entry
+
+            for (long e : out[current]) {
+                int neighbor = target(e);
+                int alt = dist[current] + cost(e);
+                if (alt < dist[neighbor]) {
+                    markChanged(neighbor, changed);
+                    dist[neighbor] = alt;
+                    pq.add(key(alt, neighbor));
+                }
+            }
+        }
+    }
+
+    private boolean updateFirstHops(IntList dirty) {
+        boolean changed = false;
+
+        // Parents before children, unreachable nodes last
+        LongHeap queue = new LongHeap();
+        for (int k = 0; k < dirty.size; k++) {
+            int v = dirty.get(k);
+            if (queued[v] != stamp) {
+                queued[v] = stamp;
+                queue.add(key(dist[v], v));
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int v = node(queue.poll());
+            queued[v] = 0;
+
+            int[] hops = bestFirstHops(v);
+            boolean hopChanged = !Arrays.equals(firstHops[v], hops);
+            if (hopChanged) firstHops[v] = hops;
+            changed |= hopChanged;
+
+            // A node whose distance changed may stop being a parent of any child, not just equal cost ones
+            boolean expandAll = distChanged[v] == stamp && expanded[v] != stamp;
+            if (expandAll) expanded[v] = stamp;
+            if (!hopChanged && !expandAll) continue;
+
+            int dv = dist[v];
+            for (long e : out[v]) {
+                int w = target(e);
+                if (expandAll || (dv != INF && dist[w] == dv + cost(e))) {
+                    if (queued[w] != stamp) {
+                        queued[w] = stamp;
+                        queue.add(key(dist[w], w));
+                    }
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    //Union of the first hops of all equal cost parents
+    private int[] bestFirstHops(int v) {
+        if (v == root) return NONE;
+
+        int dv = dist[v];
+        if (dv == INF) return NONE;
+
+        int[] best = NONE;
+        for (long e : in[v]) {
+            int p = target(e);
+            if (dist[p] == INF || dist[p] + cost(e) != dv) continue;
+
+            best = p == root ? withNode(best, v) : union(best, firstHops[p]);
+        }
+        return best;
+    }
+
+    private void markChanged(int v, IntList changed) {
+        if (distChanged[v] != stamp) {
+            distChanged[v] = stamp;
+            changed.add(v);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        int old = dist.length;
+        if (n <= old) return;
+
+        int size = Math.max(n, old * 2);
+        out = Arrays.copyOf(out, size);
+        in = Arrays.copyOf(in, size);
+        dist = Arrays.copyOf(dist, size);
+        firstHops = Arrays.copyOf(firstHops, size);
+        affected = Arrays.copyOf(affected, size);
+        distChanged = Arrays.copyOf(distChanged, size);
+        queued = Arrays.copyOf(queued, size);
+        expanded = Arrays.copyOf(expanded, size);
+
+        for (int v = old; v < size; v++) {
+            out[v] = NO_EDGES;
+            in[v] = NO_EDGES;
+            dist[v] = INF;
+            firstHops[v] = NONE;
+        }
+    }
+
+    // Edges pack (node at the other end, cost) into one long, so rows sort by node
+
+    private static long edge(int node, int cost) {
+        return ((long) node << 32) | cost;
+    }
+
+    private static int target(long edge) {
+        return (int) (edge >>> 32);
+    }
+
+    private static int cost(long edge) {
+        return (int) edge;
+    }
+
+    // Heap entries pack (distance, node) into one long so ordering needs no objects
+
+    private static long key(int distance, int node) {
+        return ((long) distance << 32) | node;
+    }
+
+    private static int distance(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int node(long key) {
+        return (int) key;
+    }
+
+    //Sorted row of edges, one per neighbor with its lowest cost
+    private static long[] edges(int[] neighbors, int[] costs) {
+        long[] sorted = new long[neighbors.length];
+        for (int k = 0; k < neighbors.length; k++) {
+            int cost = costs == null ? 1 : Math.max(1, costs[k]);
+            sorted[k] = edge(neighbors[k], cost);
+        }
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (n == 0 || target(sorted[n - 1]) != target(sorted[k])) sorted[n++] = sorted[k];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    //Merges two sorted rows into what was removed and what was added
+    private static void diff(long[] oldRow, long[] newRow, LongList removed, LongList added) {
+        int i = 0;
+        int j = 0;
+        while (i < oldRow.length || j < newRow.length) {
+            if (j == newRow.length || (i < oldRow.length && oldRow[i] < newRow[j])) {
+                removed.add(oldRow[i++]);
+            } else if (i == oldRow.length || newRow[j] < oldRow[i]) {
+                added.add(newRow[j++]);
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    //Position of the edge to a node in a row, or -(insertion point) - 1
+    private static int find(long[] row, int node) {
+        int pos = Arrays.binarySearch(row, edge(node, 0));
+        if (pos >= 0) return pos;
+        pos = -pos - 1;
+        return pos < row.length && target(row[pos]) == node ? pos : -pos - 1;
+    }
+
+    private static long[] with(long[] row, long edge) {
+        int pos = find(row, target(edge));
+        if (pos >= 0) {
+            long[] result = row.clone();
+            result[pos] = edge;
+            return result;
+        }
+        pos = -pos - 1;
+
+        long[] result = new long[row.length + 1];
+        System.arraycopy(row, 0, result, 0, pos);
+        result[pos] = edge;
+        System.arraycopy(row, pos, result, pos + 1, row.length - pos);
+        return result;
+    }
+
+    private static long[] without(long[] row, int node) {
+        int pos = find(row, node);
+        if (pos < 0) return row;
+
+        long[] result = new long[row.length - 1];
+        System.arraycopy(row, 0, result, 0, pos);
+        System.arraycopy(row, pos + 1, result, pos, row.length - pos - 1);
+        return result;
+    }
+
+    private static int[] withNode(int[] row, int value) {
+        int pos = Arrays.binarySearch(row, value);
+        if (pos >= 0) return row;
+        pos = -pos - 1;
+
+        int[] result = new int[row.length + 1];
+        System.arraycopy(row, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(row, pos, result, pos + 1, row.length - pos);
+        return result;
+    }
+
+    //Merges two sorted rows, returns one of them if it already holds everything
+    private static int[] union(int[] a, int[] b) {
+        if (b.length == 0 || a == b) return a;
+        if (a.length == 0) return b;
+
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        if (n == a.length) return a;
+        if (n == b.length) return b;
+        return Arrays.copyOf(result, n);
+    }
+
+    private static List<String> names(int[] nodes) {
+        List<String> names = new ArrayList<>(nodes.length);
+        for (int v : nodes) {
+            names.add(NodeIds.name(v));
+        }
+        return names;
+    }
+
+    //Growable list of ints
+    static class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        void addAll(IntList other) {
+            for (int k = 0; k < other.size; k++) add(other.values[k]);
+        }
+
+        int get(int k) {
+            return values[k];
+        }
+    }
+
+    //Growable list of longs
+    static class LongList {
+        long[] values = new long[8];
+        int size;
+
+        void add(long v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        long get(int k) {
+            return values[k];
+        }
+    }
+
+    //Binary min-heap of longs
+    static class LongHeap {
+        private long[] heap = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long poll() {
+            long result = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (last <= heap[child]) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return result;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    //Full computation over a whole topology with unit costs, see below
+    public static Map<String, List<String>> compute(String rootName, Map<String, Set<String>> topology) {
+        return compute(rootName, topology, (from, to) -> 1);
+    }
+
+    //Full computation over a whole topology with the same equal cost first hops, used to check update()
+    //The topology is turned into CSR arrays: the neighbors of node v are targets[offsets[v]..offsets[v + 1])
+    public static Map<String, List<String>> compute(String rootName, Map<String, Set<String>> topology,
+                                                    ToIntBiFunction<String, String> linkCost) {
+
+        int root = NodeIds.intern(rootName);
+        int n = root + 1;
+        for (Map.Entry<String, Set<String>> e : topology.entrySet()) {
+            n = Math.max(n, NodeIds.intern(e.getKey()) + 1);
+            for (String v : e.getValue()) {
+                n = Math.max(n, NodeIds.intern(v) + 1);
+            }
+        }
+
+        int[] outDegree = new int[n];
+        int[] inDegree = new int[n];
+        for (Map.Entry<String, Set<String>> e : topology.entrySet()) {
+            int u = NodeIds.find(e.getKey());
+            for (String v : e.getValue()) {
+                outDegree[u]++;
+                inDegree[NodeIds.find(v)]++;
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        int[] inOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] = offsets[v] + outDegree[v];
+            inOffsets[v + 1] = inOffsets[v] + inDegree[v];
+        }
+        int[] targets = new int[offsets[n]];
+        int[] costs = new int[offsets[n]];
+        int[] sources = new int[inOffsets[n]];
+        int[] sourceCosts = new int[inOffsets[n]];
+        int[] outFill = Arrays.copyOf(offsets, n);
+        int[] inFill = Arrays.copyOf(inOffsets, n);
+        for (Map.Entry<String, Set<String>> e : topology.entrySet()) {
+            int u = NodeIds.find(e.getKey());
+            for (String name : e.getValue()) {
+                int v = NodeIds.find(name);
+                int cost = Math.max(1, linkCost.applyAsInt(e.getKey(), name));
+                costs[outFill[u]] = cost;
+                targets[outFill[u]++] = v;
+                sourceCosts[inFill[v]] = cost;
+                sources[inFill[v]++] = u;
+            }
+        }
+
+        int[] dist = new int[n];
+        Arrays.fill(dist, INF);
+        dist[root] = 0;
+
+        int[] order = new int[n];
+        int ordered = 0;
+        LongHeap pq = new LongHeap();
+        pq.add(key(0, root));
+
+        while (!pq.isEmpty()) {
+            long entry = pq.poll();
+            int current = node(entry);
+            if (distance(entry) != dist[current]) continue;
+            order[ordered++] = current;
+
+            for (int k = offsets[current]; k < offsets[current + 1]; k++) {
+                int neighbor = targets[k];
+                int alt = dist[current] + costs[k];
+                if (alt < dist[neighbor]) {
+                    dist[neighbor] = alt;
+                    pq.add(key(alt, neighbor));
+                }
+            }
+        }
+
+        int[][] firstHops = new int[n][];
+        Arrays.fill(firstHops, NONE);
+        Map<String, List<String>> result = new HashMap<>();
+        for (int k = 0; k < ordered; k++) {
+            int v = order[k];
+            if (v == root) continue;
+
+            int[] best = NONE;
+            for (int j = inOffsets[v]; j < inOffsets[v + 1]; j++) {
+                int p = sources[j];
+                if (dist[p] == INF || dist[p] + sourceCosts[j] != dist[v]) continue;
+
+                best = p == root ? withNode(best, v) : union(best, firstHops[p]);
+            }
+            firstHops[v] = best;
+            if (best.length > 0) {
+                result.put(NodeIds.name(v), names(best));
+            }
+        }
+        return result;
+    }
+}
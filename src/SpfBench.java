@@ -0,0 +1,116 @@
+import java.util.*;
+
+//Compares incremental SPF against a full recomputation on random topologies
+//Usage: java SpfBench [routers...]
+//Every router gets links to a few random others with random costs, then random links flap (go down
+//and come back) or change cost. After each change both results are checked to be identical and the
+//time of each is added up.
+public class SpfBench {
+
+    private static final int DEGREE = 4;
+    private static final int FLAPS = 200;
+    private static final int MAX_COST = 10;
+
+    public static void main(String[] args) {
+
+        int[] sizes = args.length == 0 ? new int[]{100, 500, 1000, 5000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%8s %8s %14s %14s %9s%n", "routers", "flaps", "full us/op", "incr us/op", "speedup");
+        for (int n : sizes) {
+            run(n, new Random(n));
+        }
+    }
+
+    private static void run(int n, Random random) {
+
+        Map<String, Set<String>> topology = TopologyGenerator.randomTopology(n, DEGREE, random);
+        String root = "R0";
+
+        // Same cost in both directions, like two routers measuring the same link
+        Map<String, Integer> costs = new HashMap<>();
+        for (Map.Entry<String, Set<String>> e : topology.entrySet()) {
+            for (String neighbor : e.getValue()) {
+                setCost(costs, e.getKey(), neighbor, 1 + random.nextInt(MAX_COST));
+            }
+        }
+
+        Spf spf = new Spf(NodeIds.intern(root));
+        for (String node : topology.keySet()) {
+            update(spf, node, topology, costs);
+        }
+        check(spf, root, topology, costs);
+
+        long fullNanos = 0;
+        long incrementalNanos = 0;
+        int updates = 0;
+
+        for (int i = 0; i < FLAPS; i++) {
+            String a = "R" + random.nextInt(n);
+            List<String> links = new ArrayList<>(topology.get(a));
+            if (links.isEmpty()) continue;
+            String b = links.get(random.nextInt(links.size()));
+
+            // Link goes down then comes back, or gets slower then recovers,
+            // each side re-advertises its LSA
+            boolean flap = i % 2 == 0;
+            int cost = cost(costs, a, b);
+            for (boolean restore : new boolean[]{false, true}) {
+                for (String[] side : new String[][]{{a, b}, {b, a}}) {
+                    if (!flap) {
+                        setCost(costs, side[0], side[1], restore ? cost : cost + 1 + random.nextInt(MAX_COST));
+                    } else if (restore) {
+                        topology.get(side[0]).add(side[1]);
+                    } else {
+                        topology.get(side[0]).remove(side[1]);
+                    }
+
+                    long t0 = System.nanoTime();
+                    update(spf, side[0], topology, costs);
+                    long t1 = System.nanoTime();
+                    Map<String, List<String>> full = Spf.compute(root, topology, (x, y) -> cost(costs, x, y));
+                    long t2 = System.nanoTime();
+
+                    incrementalNanos += t1 - t0;
+                    fullNanos += t2 - t1;
+                    updates++;
+
+                    if (!full.equals(spf.firstHops())) {
+                        throw new IllegalStateException("Incremental SPF differs from full run at " + n + " routers");
+                    }
+                }
+            }
+        }
+
+        double fullUs = fullNanos / 1000.0 / updates;
+        double incrementalUs = incrementalNanos / 1000.0 / updates;
+        System.out.printf("%8d %8d %14.1f %14.1f %8.1fx%n",
+                n, FLAPS, fullUs, incrementalUs, fullUs / incrementalUs);
+    }
+
+    private static void check(Spf spf, String root, Map<String, Set<String>> topology, Map<String, Integer> costs) {
+        if (!Spf.compute(root, topology, (x, y) -> cost(costs, x, y)).equals(spf.firstHops())) {
+            throw new IllegalStateException("Incremental SPF differs from full run");
+        }
+    }
+
+    //What the node's LSA would advertise: its neighbors and the cost to each
+    private static void update(Spf spf, String node, Map<String, Set<String>> topology, Map<String, Integer> costs) {
+        List<String> neighbors = new ArrayList<>(topology.get(node));
+        int[] linkCosts = new int[neighbors.size()];
+        for (int k = 0; k < linkCosts.length; k++) {
+            linkCosts[k] = cost(costs, node, neighbors.get(k));
+        }
+        spf.update(NodeIds.intern(node), NodeIds.internAll(neighbors), linkCosts);
+    }
+
+    private static int cost(Map<String, Integer> costs, String from, String to) {
+        return costs.getOrDefault(from + ":" + to, 1);
+    }
+
+    private static void setCost(Map<String, Integer> costs, String from, String to, int cost) {
+        costs.put(from + ":" + to, cost);
+    }
+}
@@ -0,0 +1,135 @@
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+//MacTable shared by several receive threads: the MAC space is split over a power of two number of
+//stripes, each a MacTable of its own behind a lock. A MAC always lands in the same stripe, so
+//learning it again, moving it to another port and ageing it out happen under one lock and every
+//thread sees the same port for it. Capacity is divided evenly, each stripe evicts its own least
+//recently learned entry when it is full. A table of one stripe has no locks: every call, removePorts
+//included, has to come from the one thread that owns it.
+public class StripedMacTable {
+
+    private final MacTable[] stripes;
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public StripedMacTable(int stripeCount, int capacity, long maxAgeMs) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount));
+        this.stripes = new MacTable[count];
+        this.locks = count == 1 ? null : new ReentrantLock[count];
+        this.mask = count - 1;
+        int perStripe = Math.max(1, (capacity + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new MacTable(perStripe, maxAgeMs);
+            if (locks != null) locks[i] = new ReentrantLock();
+        }
+    }
+
+    //See MacTable.get
+    public InetSocketAddress get(long mac, long nowNanos) {
+        if (locks == null) return stripes[0].get(mac, nowNanos);
+
+        int i = stripe(mac);
+        locks[i].lock();
+        try {
+            return stripes[i].get(mac, nowNanos);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    //See MacTable.learn
+    public boolean learn(long mac, InetSocketAddress port, long nowNanos) {
+        if (locks == null) return stripes[0].learn(mac, port, nowNanos);
+
+        int i = stripe(mac);
+        locks[i].lock();
+        try {
+            return stripes[i].learn(mac, port, nowNanos);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    public void expire(long nowNanos) {
+        if (locks == null) {
+            stripes[0].expire(nowNanos);
+            return;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                stripes[i].expire(nowNanos);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    //See MacTable.removePorts
+    public int removePorts(Set<InetSocketAddress> removed) {
+        if (locks == null) return stripes[0].removePorts(removed);
+
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                count += stripes[i].removePorts(removed);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return count;
+    }
+
+    public int stripeCount() {
+        return stripes.length;
+    }
+
+    // The totals below read plain fields without the locks, good enough for stats
+
+    public int size() {
+        int size = 0;
+        for (MacTable stripe : stripes) size += stripe.size();
+        return size;
+    }
+
+    public int capacity() {
+        int capacity = 0;
+        for (MacTable stripe : stripes) capacity += stripe.capacity();
+        return capacity;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for (MacTable stripe : stripes) evictions += stripe.getEvictions();
+        return evictions;
+    }
+
+    public long getExpirations() {
+        long expirations = 0;
+        for (MacTable stripe : stripes) expirations += stripe.getExpirations();
+        return expirations;
+    }
+
+    public long getMoves() {
+        long moves = 0;
+        for (MacTable stripe : stripes) moves += stripe.getMoves();
+        return moves;
+    }
+
+    private int stripe(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "macs=" + size() + "/" + capacity() +
+                " evicted=" + getEvictions() +
+                " expired=" + getExpirations() +
+                " moved=" + getMoves() +
+                " stripes=" + stripes.length;
+    }
+}
@@ -1,118 +1,309 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Switch {
 
     private final String switchId;
-    private final int listenPort;
-    private final DatagramSocket socket;
 
-    //Switch table: MAC address -> Neighbor (IP + Port)
+    //Receive/forward workers, set with -Dswitch.workers. Worker i receives and sends on transport
+    //i modulo their number: with one transport every worker waits on it and whichever wins the
+    //receive handles the frame, so frames from one port may be forwarded out of order. With
+    //-Dswitch.reusePort=true main() binds one socket per worker instead, and the kernel keeps
+    //each port's frames on one worker.
 
-    private final Map<String, InetSocketAddress> switchTable =
-            new ConcurrentHashMap<>();
+    private final Transport[] transports;
+    private final int workerCount = Math.max(1, Integer.getInteger("switch.workers", 1));
 
-    //All directly connected neighbors
+    //Switch table: MAC key (see Frame.macKey) -> Neighbor (IP + Port)
+    //Shared by the workers, striped four ways per worker so they rarely wait on each other.
+    //Holds at most -Dswitch.macCapacity addresses, each forgotten -Dswitch.macAgeMs after it
+    //was last seen as a source.
 
-    private final List<InetSocketAddress> neighbors;
+    private final StripedMacTable switchTable = new StripedMacTable(
+            workerCount == 1 ? 1 : 4 * workerCount,
+            Integer.getInteger("switch.macCapacity", 4096),
+            Long.getLong("switch.macAgeMs", 300_000));
+
+    //Table changes from other threads that worker 0 runs between frames, for the single worker
+    //switch whose table has no locks
+
+    private final ConcurrentLinkedQueue<Runnable> workerTasks = new ConcurrentLinkedQueue<>();
+
+    //Table occupancy and evictions, reported every -Dswitch.statsIntervalMs
+
+    private final long statsIntervalMs = Long.getLong("switch.statsIntervalMs", 10000);
+    private long lastStatsTime = System.currentTimeMillis();
+
+    //All directly connected neighbors, replaced as a whole by reconfigure()
+
+    private volatile List<InetSocketAddress> neighbors;
+
+    //MTU of the link behind each port, frames that do not fit are dropped like on Ethernet:
+    //a switch does not fragment
+
+    private volatile Map<InetSocketAddress, Integer> portMtus;
+
+    //Counters served by AdminServer
+
+    private final Metrics metrics;
+    private final Metrics.Counter malformedFrames;
+    private final Metrics.Counter unicasts;
+    private final Metrics.Counter floods;
+    private final Metrics.Counter filtered;
+    private final Metrics.Counter mtuDrops;
+    private final Map<InetSocketAddress, Metrics.Counter> packetsIn = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Metrics.Counter> packetsOut = new ConcurrentHashMap<>();
+    private final Metrics.Counter unknownIn;
+    // Frames received by each worker, to see that the load is spread
+    private final Metrics.Counter[] workerFrames;
 
     public Switch(String switchId,
                   int listenPort,
                   List<InetSocketAddress> neighbors) throws Exception {
+        this(switchId, new UdpTransport(new InetSocketAddress(listenPort)), neighbors);
+    }
+
+    public Switch(String switchId,
+                  Transport transport,
+                  List<InetSocketAddress> neighbors) {
+        this(switchId, transport, neighbors, Map.of());
+    }
+
+    public Switch(String switchId,
+                  Transport transport,
+                  List<InetSocketAddress> neighbors,
+                  Map<InetSocketAddress, Integer> portMtus) {
+        this(switchId, List.of(transport), neighbors, portMtus);
+    }
+
+    //Ports missing from portMtus get Topology.DEFAULT_MTU
+    public Switch(String switchId,
+                  List<Transport> transports,
+                  List<InetSocketAddress> neighbors,
+                  Map<InetSocketAddress, Integer> portMtus) {
 
         this.switchId = switchId;
-        this.listenPort = listenPort;
-        this.neighbors = neighbors;
-        this.socket = new DatagramSocket(listenPort);
+        this.transports = transports.toArray(new Transport[0]);
+        this.neighbors = List.copyOf(neighbors);
+        this.portMtus = Map.copyOf(portMtus);
+
+        this.metrics = new Metrics(switchId);
+        this.malformedFrames = metrics.counter("switch_malformed_frames");
+        this.unicasts = metrics.counter("switch_unicasts");
+        this.floods = metrics.counter("switch_floods");
+        this.filtered = metrics.counter("switch_filtered");
+        this.mtuDrops = metrics.counter("switch_mtu_drops");
+        for (InetSocketAddress neighbor : neighbors) {
+            addPortCounters(neighbor);
+        }
+        this.unknownIn = metrics.counter("switch_packets_in", "port", "unknown");
+        this.workerFrames = new Metrics.Counter[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workerFrames[i] = metrics.counter("switch_worker_frames", "worker", String.valueOf(i));
+        }
+        metrics.gauge("switch_mac_entries", switchTable::size);
+        metrics.gauge("switch_mac_capacity", switchTable::capacity);
+        metrics.gauge("switch_mac_evictions", switchTable::getEvictions);
+        metrics.gauge("switch_mac_expirations", switchTable::getExpirations);
+        metrics.gauge("switch_mac_moves", switchTable::getMoves);
+        metrics.gauge("log_dropped", Log::getDropped);
+
+        Log.info("Switch " + switchId + " listening on port " + this.transports[0].getLocalAddress().getPort() +
+                " with " + workerCount + " workers on " + this.transports.length + " sockets");
+        Log.info("Neighbors: " + neighbors);
+    }
+
 
-        System.out.println("Switch " + switchId + " listening on port " + listenPort);
-        System.out.println("Neighbors: " + neighbors);
+    private void addPortCounters(InetSocketAddress neighbor) {
+        packetsIn.put(neighbor, metrics.counter("switch_packets_in", "port", portName(neighbor)));
+        packetsOut.put(neighbor, metrics.counter("switch_packets_out", "port", portName(neighbor)));
     }
 
+    private static String portName(InetSocketAddress neighbor) {
+        return neighbor.getAddress().getHostAddress() + ":" + neighbor.getPort();
+    }
+
+    //Takes over the ports a changed config gives this switch. Frames keep flowing: the receive
+    //loop picks up the new port list with its next flood, and addresses learned on a removed
+    //port are dropped from the table so they are flooded again rather than sent to a dead port.
+    public void reconfigure(Topology topology) {
+        List<InetSocketAddress> configured = topology.getNeighbors(switchId);
+        Map<InetSocketAddress, Integer> mtus = portMtus(topology, switchId);
+        List<InetSocketAddress> current = neighbors;
+        if (configured.equals(current) && mtus.equals(portMtus)) return;
+
+        List<String> changes = new ArrayList<>();
+        Set<InetSocketAddress> removed = new HashSet<>();
+        for (InetSocketAddress neighbor : current) {
+            if (!configured.contains(neighbor)) {
+                removed.add(neighbor);
+                packetsIn.remove(neighbor);
+                packetsOut.remove(neighbor);
+                metrics.remove("port", portName(neighbor));
+                changes.add("-" + portName(neighbor));
+            }
+        }
+        for (InetSocketAddress neighbor : configured) {
+            if (!current.contains(neighbor)) {
+                addPortCounters(neighbor);
+                changes.add("+" + portName(neighbor));
+            }
+        }
+        for (Map.Entry<InetSocketAddress, Integer> e : mtus.entrySet()) {
+            if (current.contains(e.getKey()) && !e.getValue().equals(portMtus.get(e.getKey()))) {
+                changes.add(portName(e.getKey()) + " MTU " + e.getValue());
+            }
+        }
+        if (!removed.isEmpty()) {
+            Runnable flush = () -> {
+                int flushed = switchTable.removePorts(removed);
+                if (flushed > 0) Log.info("Switch " + switchId + " flushed " + flushed + " MACs of removed ports");
+            };
+            if (workerCount == 1) {
+                workerTasks.add(flush);
+            } else {
+                flush.run();
+            }
+        }
+        portMtus = mtus;
+        neighbors = List.copyOf(configured);
+        if (!changes.isEmpty()) {
+            Log.info("Switch " + switchId + " reconfigured: " + String.join(" ", changes));
+        }
+    }
+
+    public String getSwitchId() {
+        return switchId;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
     public void start() {
-        byte[] buffer = new byte[4096];
+        for (int i = 1; i < workerCount; i++) {
+            int worker = i;
+            Thread thread = new Thread(() -> receiveLoop(worker), "Switch-Worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        receiveLoop(0);
+    }
+
+    //Worker 0 also prints the stats
+    private void receiveLoop(int worker) {
+        // Frames are resent straight out of the receive buffer, which takes any frame
+        ByteBuffer frame = ByteBuffer.allocate(Frame.MAX_FRAME);
+        Metrics.Counter frames = workerFrames[worker];
+        Transport transport = transports[worker % transports.length];
 
         while (true) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                if (worker == 0) {
+                    maybePrintStats();
+                    runWorkerTasks();
+                }
 
-                InetSocketAddress incomingPort =
-                        new InetSocketAddress(packet.getAddress(), packet.getPort());
+                // Wake up now and then so stats still get printed when no frames arrive
+                frame.clear();
+                InetSocketAddress incomingPort = transport.receive(frame, Math.max(1, statsIntervalMs));
+                if (incomingPort == null) continue;
+                // A flush posted while waiting goes before the frame that may have needed it
+                if (worker == 0) runWorkerTasks();
 
-                String frame = new String(packet.getData(), 0, packet.getLength()).trim();
-                handleFrame(frame, incomingPort);
+                frames.increment();
+                packetsIn.getOrDefault(incomingPort, unknownIn).increment();
+
+                if (!Frame.isValid(frame)) {
+                    malformedFrames.increment();
+                    continue;
+                }
+
+                handleFrame(frame, incomingPort, transport);
 
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Failed to handle frame", e);
             }
         }
     }
 
-    //Ethernet Learning Switch Logic
-    private void handleFrame(String frame, InetSocketAddress incomingPort) throws Exception {
-        // Frame format: srcMAC:dstMAC:payload
-        String[] parts = frame.split(":", 6);
-        if (parts.length < 6) return;
-
-        String flag = parts[0];
-        String srcMac = parts[1];
-        String dstMac = parts[2];
-
-        if (!switchTable.containsKey(srcMac)) {
-            switchTable.put(srcMac, incomingPort);
-            printSwitchTable();
+    private void runWorkerTasks() {
+        Runnable task;
+        while ((task = workerTasks.poll()) != null) {
+            task.run();
         }
+    }
 
-        if (switchTable.containsKey(dstMac)) {
-            InetSocketAddress outPort = switchTable.get(dstMac);
+    //Ethernet Learning Switch Logic
+    //Only the two MAC fields of the header are read, the frame bytes are forwarded unchanged
+    private void handleFrame(ByteBuffer frame, InetSocketAddress incomingPort, Transport transport)
+            throws Exception {
+        long srcMac = Frame.macKey(frame, Frame.SRC_MAC_OFFSET);
+        long dstMac = Frame.macKey(frame, Frame.DST_MAC_OFFSET);
+        long now = System.nanoTime();
+
+        // Refreshes a known address in place, relearns it if the host moved
+        if (switchTable.learn(srcMac, incomingPort, now)) {
+            Log.info("Learned MAC " + Frame.macString(srcMac) + " -> " +
+                    incomingPort.getAddress().getHostAddress() + ":" + incomingPort.getPort() +
+                    " @ " + switchId);
+        }
 
+        InetSocketAddress outPort = switchTable.get(dstMac, now);
+        if (outPort != null) {
             if (!outPort.equals(incomingPort)) {
-                sendFrame(frame, outPort);
+                unicasts.increment();
+                sendFrame(frame, outPort, transport);
+            } else {
+                filtered.increment();
             }
         } else {
-            flood(frame, incomingPort);
+            floods.increment();
+            flood(frame, incomingPort, transport);
         }
     }
 
     //Flood frame to all ports except incoming
-    private void flood(String frame, InetSocketAddress incomingPort) throws Exception {
+    private void flood(ByteBuffer frame, InetSocketAddress incomingPort, Transport transport) throws Exception {
         for (InetSocketAddress neighbor : neighbors) {
             if (!neighbor.equals(incomingPort)) {
-                sendFrame(frame, neighbor);
+                sendFrame(frame, neighbor, transport);
             }
         }
     }
 
-    //Send frame via UDP
+    //Send frame through the transport, the buffer is left as it was for the next port
 
-    private void sendFrame(String frame, InetSocketAddress target) throws Exception {
-        byte[] data = frame.getBytes();
-        DatagramPacket packet = new DatagramPacket(
-                data,
-                data.length,
-                target.getAddress(),
-                target.getPort()
-        );
-        socket.send(packet);
+    private void sendFrame(ByteBuffer frame, InetSocketAddress target, Transport transport) throws Exception {
+        if (frame.remaining() > portMtus.getOrDefault(target, Topology.DEFAULT_MTU)) {
+            mtuDrops.increment();
+            return;
+        }
+        if (!transport.send(frame, target)) return;
+        Metrics.Counter out = packetsOut.get(target);
+        if (out != null) out.increment();
     }
 
-    //Prints the switch table
-    private void printSwitchTable() {
-        System.out.println("\n--- Switch Table @ " + switchId + " ---");
-        for (Map.Entry<String, InetSocketAddress> entry : switchTable.entrySet()) {
-            System.out.println(
-                    "MAC " + entry.getKey() + " -> " +
-                            entry.getValue().getAddress().getHostAddress() +
-                            ":" + entry.getValue().getPort()
-            );
+    //Prints switch table occupancy and counters once per stats interval
+    private void maybePrintStats() {
+        long now = System.currentTimeMillis();
+        if (now - lastStatsTime < statsIntervalMs) return;
+
+        switchTable.expire(System.nanoTime());
+        StringBuilder perWorker = new StringBuilder();
+        for (Metrics.Counter frames : workerFrames) {
+            perWorker.append(perWorker.length() == 0 ? "" : ",").append(frames.sum());
         }
-        System.out.println("------------------------\n");
+        Log.info("[STATS] " + switchId + " " + switchTable + " workerFrames=" + perWorker);
+        lastStatsTime = now;
     }
 
     public static void main(String[] args) throws Exception {
@@ -124,22 +315,51 @@ public class Switch {
 
         String switchId = args[0];
 
-        Parser parser = new Parser("Config");
+        Topology topology = Topology.load("Config");
 
-        InetSocketAddress myAddress = parser.getAddress(switchId);
+        InetSocketAddress myAddress = topology.getAddress(switchId);
         if (myAddress == null) {
             System.out.println("Switch ID not found in config: " + switchId);
             return;
         }
 
-        List<InetSocketAddress> neighbors = parser.getNeighbors(switchId);
+        // One socket shared by the workers, or one each on the same port
+        List<Transport> transports = new ArrayList<>();
+        if (Boolean.getBoolean("switch.reusePort")) {
+            for (int i = Math.max(1, Integer.getInteger("switch.workers", 1)); i > 0; i--) {
+                transports.add(new UdpTransport(myAddress, true));
+            }
+        } else {
+            transports.add(new UdpTransport(myAddress));
+        }
+
+        Switch sw = fromConfig(topology, switchId, transports);
+        AdminServer.start(sw.getMetrics(), myAddress.getPort());
+        ConfigWatcher.watch("Config", sw::reconfigure);
+        sw.start();
+    }
+
+    public static Switch fromConfig(Topology topology, String switchId, Transport transport) {
+        return fromConfig(topology, switchId, List.of(transport));
+    }
 
-        Switch sw = new Switch(
+    public static Switch fromConfig(Topology topology, String switchId, List<Transport> transports) {
+        List<InetSocketAddress> neighbors = topology.getNeighbors(switchId);
+
+        return new Switch(
                 switchId,
-                myAddress.getPort(),
-                neighbors
+                transports,
+                neighbors,
+                portMtus(topology, switchId)
         );
+    }
 
-        sw.start();
+    private static Map<InetSocketAddress, Integer> portMtus(Topology topology, String switchId) {
+        Map<InetSocketAddress, Integer> mtus = new HashMap<>();
+        for (String neighborId : topology.getNeighborIds(switchId)) {
+            InetSocketAddress address = topology.getAddress(neighborId);
+            if (address != null) mtus.put(address, topology.getLinkMtu(switchId, neighborId));
+        }
+        return Map.copyOf(mtus);
     }
 }
@@ -0,0 +1,65 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+//Read-only view of a config: device addresses, links and their MTUs, virtual IPs and gateways
+//
+//Parser reads the text config, TopologySnapshot maps a compiled binary copy of it so a node can
+//answer the few questions it has about itself without parsing the whole file.
+public interface Topology {
+
+    // Smallest MTU a link can have, room for the header and one fragment unit
+    int MIN_MTU = Frame.HEADER_LEN + Frame.FRAGMENT_UNIT;
+
+    // MTU of links that do not give one ("a:b" rather than "a:b:mtu"), set with -Dlink.mtu
+    int DEFAULT_MTU = checkMtu(Integer.getInteger("link.mtu", 1500), "-Dlink.mtu");
+
+    //Declared devices in file order
+    List<String> getDeviceIds();
+
+    InetSocketAddress getAddress(String id);
+
+    //Addresses of the linked devices that are declared
+    List<InetSocketAddress> getNeighbors(String id);
+
+    List<String> getNeighborIds(String id);
+
+    List<String> getVirtualIps(String id);
+
+    String getHostVirtualIp(String id);
+
+    String getGatewayVirtualIp(String id);
+
+    //Largest frame the link between two devices carries, header included. DEFAULT_MTU for
+    //links without an MTU of their own and for devices that are not linked.
+    int getLinkMtu(String a, String b);
+
+    //The MTU if it is between MIN_MTU and Frame.MAX_FRAME, says where it came from otherwise
+    static int checkMtu(int mtu, String source) {
+        if (mtu < MIN_MTU || mtu > Frame.MAX_FRAME) {
+            throw new IllegalArgumentException("MTU out of range (" + MIN_MTU + " to " + Frame.MAX_FRAME +
+                    ") in " + source + ": " + mtu);
+        }
+        return mtu;
+    }
+
+    //The snapshot next to the config (see TopologySnapshot.snapshotFile) when it was compiled
+    //from the config as it is now, otherwise the parsed config
+    static Topology load(String configFile) throws Exception {
+        File snapshot = TopologySnapshot.snapshotFile(configFile);
+        if (snapshot.exists()) {
+            try {
+                TopologySnapshot compiled = TopologySnapshot.open(snapshot);
+                if (compiled.isCompiledFrom(new File(configFile))) {
+                    return compiled;
+                }
+                Log.warn("Snapshot " + snapshot + " is out of date, parsing " + configFile);
+            } catch (IOException e) {
+                // Left over from another version of the format, say
+                Log.warn("Cannot use snapshot " + snapshot + " (" + e.getMessage() + "), parsing " + configFile);
+            }
+        }
+        return new Parser(configFile);
+    }
+}
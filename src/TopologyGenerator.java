@@ -0,0 +1,127 @@
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+//Synthetic topologies for benchmarks and the Simulator
+//Usage: java TopologyGenerator <routers> [hosts] [file]
+//
+//Routers R0..Rn-1 form a ring plus -Dgen.degree - 2 random links each (default degree 4),
+//so the graph is always connected. Every router announces a subnet of its own ("net7.R7").
+//Each host sits behind a switch of its own on a different router, with the router as gateway,
+//on a LAN subnet named after the host number ("neth0.A", "neth0.R0").
+//Hosts are single letters like in the hand-written Config, so there can be at most 52.
+//The random links come from -Dgen.seed (default 1). Without a file the config goes to stdout.
+public class TopologyGenerator {
+
+    private static final String HOST_NAMES = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int FIRST_PORT = 20000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java TopologyGenerator <routers> [hosts] [file]");
+            return;
+        }
+
+        int routers = Integer.parseInt(args[0]);
+        int hosts = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int degree = Integer.getInteger("gen.degree", 4);
+        Random random = new Random(Long.getLong("gen.seed", 1));
+
+        Map<String, Set<String>> topology = randomTopology(routers, degree, random);
+        if (args.length > 2) {
+            writeConfig(Path.of(args[2]), topology, hosts);
+        } else {
+            PrintWriter out = new PrintWriter(System.out);
+            writeConfig(out, topology, hosts);
+            out.flush();
+        }
+    }
+
+    //Router-only graph: a ring plus degree - 2 random links per router, all symmetric
+    public static Map<String, Set<String>> randomTopology(int n, int degree, Random random) {
+        Map<String, Set<String>> topology = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            topology.put("R" + i, new HashSet<>());
+        }
+        for (int i = 0; i < n; i++) {
+            link(topology, "R" + i, "R" + ((i + 1) % n));
+            for (int k = 0; k < degree - 2; k++) {
+                int j = random.nextInt(n);
+                if (j != i) link(topology, "R" + i, "R" + j);
+            }
+        }
+        return topology;
+    }
+
+    public static void writeConfig(Path path, Map<String, Set<String>> topology, int hosts) throws Exception {
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            writeConfig(new PrintWriter(writer), topology, hosts);
+        }
+    }
+
+    //Config in the format Parser reads: device blocks first, then the links
+    public static void writeConfig(PrintWriter out, Map<String, Set<String>> topology, int hosts) {
+        List<String> routers = new ArrayList<>(topology.keySet());
+        if (hosts > HOST_NAMES.length()) {
+            throw new IllegalArgumentException("At most " + HOST_NAMES.length() + " hosts, got " + hosts);
+        }
+        if (hosts > routers.size()) {
+            throw new IllegalArgumentException("Every host needs a router of its own, got " +
+                    hosts + " hosts for " + routers.size() + " routers");
+        }
+
+        // Host i hangs off switch Si on a router spread evenly over the ring
+        String[] gatewayOf = new String[hosts];
+        Map<String, Integer> lanOf = new HashMap<>();
+        for (int h = 0; h < hosts; h++) {
+            gatewayOf[h] = routers.get((int) ((long) h * routers.size() / hosts));
+            lanOf.put(gatewayOf[h], h);
+        }
+
+        int port = FIRST_PORT;
+        for (int h = 0; h < hosts; h++) {
+            String host = String.valueOf(HOST_NAMES.charAt(h));
+            device(out, host, port++, "neth" + h + "." + host, "neth" + h + "." + gatewayOf[h]);
+            device(out, "S" + h, port++);
+        }
+        for (String router : routers) {
+            Integer lan = lanOf.get(router);
+            if (lan == null) {
+                device(out, router, port++, "net" + router.substring(1) + "." + router);
+            } else {
+                device(out, router, port++, "net" + router.substring(1) + "." + router, "neth" + lan + "." + router);
+            }
+        }
+
+        for (int h = 0; h < hosts; h++) {
+            out.println(HOST_NAMES.charAt(h) + ":S" + h);
+            out.println("S" + h + ":" + gatewayOf[h]);
+        }
+        for (Map.Entry<String, Set<String>> e : topology.entrySet()) {
+            for (String neighbor : e.getValue()) {
+                // Links are listed once, Parser adds both directions
+                if (e.getKey().compareTo(neighbor) < 0) {
+                    out.println(e.getKey() + ":" + neighbor);
+                }
+            }
+        }
+    }
+
+    private static void device(PrintWriter out, String id, int port, String... virtualIps) {
+        out.println(id);
+        out.println(port);
+        out.println("127.0.0.1");
+        out.println();
+        for (String vip : virtualIps) {
+            out.println(vip);
+        }
+        out.println();
+    }
+
+    private static void link(Map<String, Set<String>> topology, String a, String b) {
+        topology.get(a).add(b);
+        topology.get(b).add(a);
+    }
+}
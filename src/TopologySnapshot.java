@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+//Compiled, memory-mapped copy of a parsed config
+//Usage: java TopologySnapshot <config> [snapshot]    (default snapshot: <config>.snap)
+//
+//Lookups go straight to the device's record through a hash index, so opening a snapshot and
+//asking about one device only touches a few pages however big the topology is.
+//Topology.load uses the snapshot when it was compiled from the config as it is now, judged by
+//its length and CRC32 so that an edit within the same second or a restored mtime is not missed.
+//
+//Layout, big endian, offsets count from the start of the file:
+//  magic(4) version(2) configLength(8) configChecksum(8) deviceCount(4) slotCount(4)
+//  slots: recordOffset(4) * slotCount    order: recordOffset(4) * deviceCount    records...
+//A device is found by linear probing from its hash; an empty slot holds 0. order lists the
+//declared devices in file order. A record is
+//  id port(2) ip gateway vipCount(2) vips... linkCount(2) (linkedRecordOffset(4) mtu(2))...
+//with strings as one length byte followed by ASCII and mtu 0 where the config gives none. Devices that only appear in links get a
+//record with an empty ip and are not in order, as do their own neighbors and so on.
+public class TopologySnapshot implements Topology {
+
+    private static final int MAGIC = 0x544F504F; // "TOPO"
+    private static final int VERSION = 3;
+    private static final int HEADER_LEN = 4 + 2 + 8 + 8 + 4 + 4;
+
+    private final ByteBuffer buf;
+    private final long configLength;
+    private final long configChecksum;
+    private final int deviceCount;
+    private final int slotCount;
+    private final int orderOffset;
+
+    private TopologySnapshot(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < HEADER_LEN || buf.getInt(0) != MAGIC || buf.getShort(4) != VERSION) {
+            throw new IOException("Not a topology snapshot of version " + VERSION);
+        }
+        this.buf = buf;
+        this.configLength = buf.getLong(6);
+        this.configChecksum = buf.getLong(14);
+        this.deviceCount = buf.getInt(22);
+        this.slotCount = buf.getInt(26);
+        this.orderOffset = HEADER_LEN + 4 * slotCount;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java TopologySnapshot <config> [snapshot]");
+            return;
+        }
+        File config = new File(args[0]);
+        File snapshot = args.length > 1 ? new File(args[1]) : snapshotFile(args[0]);
+
+        long t0 = System.nanoTime();
+        int devices = compile(new Parser(args[0]), config, snapshot);
+        System.out.printf("Compiled %d devices from %s into %s (%d bytes) in %.1f ms%n",
+                devices, config, snapshot, snapshot.length(), (System.nanoTime() - t0) / 1e6);
+    }
+
+    //Where Topology.load looks for the snapshot of a config
+    public static File snapshotFile(String configFile) {
+        return new File(configFile + ".snap");
+    }
+
+    public static TopologySnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TopologySnapshot(mapped);
+        }
+    }
+
+    //True if the config has the length and checksum it had when this was compiled
+    public boolean isCompiledFrom(File config) {
+        if (config.length() != configLength) return false;
+        try {
+            return checksum(config) == configChecksum;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //CRC32 of the file's contents
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(chunk) >= 0) {
+                chunk.flip();
+                crc.update(chunk);
+                chunk.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    // ===================== COMPILING =====================
+
+    //Writes the snapshot of a parsed config, returns the number of declared devices. The file is
+    //written next to the target and renamed over it, so nodes never map a half-written one.
+    public static int compile(Parser parser, File config, File snapshot) throws IOException {
+        // Declared devices first, then every device a record links to, so that a device only
+        // named in links gets a record for each of its own neighbors as well
+        List<String> declared = parser.getDeviceIds();
+        Map<String, Integer> records = new LinkedHashMap<>();
+        for (String id : declared) records.put(id, 0);
+        List<String> pending = new ArrayList<>(records.keySet());
+        for (int i = 0; i < pending.size(); i++) {
+            for (String neighbor : parser.getNeighborIds(pending.get(i))) {
+                if (records.putIfAbsent(neighbor, 0) == null) pending.add(neighbor);
+            }
+        }
+
+        int slots = 2;
+        while (slots < 2 * records.size()) slots <<= 1;
+
+        int offset = HEADER_LEN + 4 * slots + 4 * declared.size();
+        for (Map.Entry<String, Integer> e : records.entrySet()) {
+            e.setValue(offset);
+            offset += recordLength(parser, e.getKey());
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(offset);
+        out.putInt(MAGIC);
+        out.putShort((short) VERSION);
+        out.putLong(config.length());
+        out.putLong(checksum(config));
+        out.putInt(declared.size());
+        out.putInt(slots);
+
+        for (Map.Entry<String, Integer> e : records.entrySet()) {
+            int slot = hash(e.getKey()) & (slots - 1);
+            while (out.getInt(HEADER_LEN + 4 * slot) != 0) slot = (slot + 1) & (slots - 1);
+            out.putInt(HEADER_LEN + 4 * slot, e.getValue());
+        }
+        out.position(HEADER_LEN + 4 * slots);
+        for (String id : declared) out.putInt(records.get(id));
+
+        for (String id : records.keySet()) {
+            InetSocketAddress address = parser.getAddress(id);
+            String gateway = parser.getGatewayVirtualIp(id);
+            putString(out, id);
+            out.putShort((short) (address == null ? 0 : address.getPort()));
+            putString(out, address == null ? "" : address.getHostString());
+            putString(out, gateway == null ? "" : gateway);
+            List<String> vips = parser.getVirtualIps(id);
+            out.putShort((short) vips.size());
+            for (String vip : vips) putString(out, vip);
+            List<String> links = parser.getNeighborIds(id);
+            out.putShort((short) links.size());
+            for (String neighbor : links) {
+                out.putInt(records.get(neighbor));
+                out.putShort((short) parser.getConfiguredLinkMtu(id, neighbor));
+            }
+        }
+
+        Path target = snapshot.toPath().toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, out.array());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return declared.size();
+    }
+
+    private static int recordLength(Parser parser, String id) {
+        InetSocketAddress address = parser.getAddress(id);
+        String gateway = parser.getGatewayVirtualIp(id);
+        int len = 1 + id.length() + 2
+                + 1 + (address == null ? 0 : address.getHostString().length())
+                + 1 + (gateway == null ? 0 : gateway.length())
+                + 2 + 2 + 6 * parser.getNeighborIds(id).size();
+        for (String vip : parser.getVirtualIps(id)) len += 1 + vip.length();
+        return len;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s.length() > 255) {
+            throw new IllegalArgumentException("String too long: " + s);
+        }
+        out.put((byte) s.length());
+        out.put(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // ===================== QUERIES =====================
+
+    @Override
+    public List<String> getDeviceIds() {
+        List<String> ids = new ArrayList<>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            ids.add(string(buf.getInt(orderOffset + 4 * i)));
+        }
+        return ids;
+    }
+
+    @Override
+    public InetSocketAddress getAddress(String id) {
+        int record = find(id);
+        return record == 0 ? null : address(record);
+    }
+
+    @Override
+    public List<InetSocketAddress> getNeighbors(String id) {
+        List<InetSocketAddress> neighbors = new ArrayList<>();
+        int record = find(id);
+        if (record == 0) return neighbors;
+
+        int links = linksOffset(record);
+        int count = buf.getShort(links) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            InetSocketAddress addr = address(buf.getInt(links + 2 + 6 * i));
+            if (addr != null) {
+                neighbors.add(addr);
+            }
+        }
+        return neighbors;
+    }
+
+    @Override
+    public List<String> getNeighborIds(String id) {
+        int record = find(id);
+        if (record == 0) return Collections.emptyList();
+
+        int links = linksOffset(record);
+        int count = buf.getShort(links) & 0xFFFF;
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(string(buf.getInt(links + 2 + 6 * i)));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> getVirtualIps(String id) {
+        int record = find(id);
+        if (record == 0) return Collections.emptyList();
+
+        int pos = vipsOffset(record);
+        int count = buf.getShort(pos) & 0xFFFF;
+        pos += 2;
+        List<String> vips = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            vips.add(string(pos));
+            pos = skipString(pos);
+        }
+        return vips;
+    }
+
+    @Override
+    public String getHostVirtualIp(String id) {
+        List<String> vips = getVirtualIps(id);
+        if (vips.isEmpty()) return null;
+        return vips.get(0);
+    }
+
+    @Override
+    public String getGatewayVirtualIp(String id) {
+        int record = find(id);
+        if (record == 0) return null;
+
+        String gateway = string(skipString(ipOffset(record)));
+        return gateway.isEmpty() ? null : gateway;
+    }
+
+    @Override
+    public int getLinkMtu(String a, String b) {
+        int record = find(a);
+        int other = find(b);
+        if (record == 0 || other == 0) return DEFAULT_MTU;
+
+        int links = linksOffset(record);
+        int count = buf.getShort(links) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            if (buf.getInt(links + 2 + 6 * i) == other) {
+                int mtu = buf.getShort(links + 6 + 6 * i) & 0xFFFF;
+                return mtu == 0 ? DEFAULT_MTU : mtu;
+            }
+        }
+        return DEFAULT_MTU;
+    }
+
+    //Offset of the device's record, 0 if there is none
+    private int find(String id) {
+        int mask = slotCount - 1;
+        for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            int record = buf.getInt(HEADER_LEN + 4 * slot);
+            if (record == 0 || nameEquals(record, id)) return record;
+        }
+    }
+
+    private boolean nameEquals(int pos, String id) {
+        int len = buf.get(pos) & 0xFF;
+        if (len != id.length()) return false;
+        for (int i = 0; i < len; i++) {
+            if ((buf.get(pos + 1 + i) & 0xFF) != id.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    //Null for devices that only appear in links
+    private InetSocketAddress address(int record) {
+        int ipPos = ipOffset(record);
+        if (buf.get(ipPos) == 0) return null;
+        return new InetSocketAddress(string(ipPos), buf.getShort(ipPos - 2) & 0xFFFF);
+    }
+
+    private int ipOffset(int record) {
+        return skipString(record) + 2;
+    }
+
+    private int vipsOffset(int record) {
+        return skipString(skipString(ipOffset(record)));
+    }
+
+    private int linksOffset(int record) {
+        int pos = vipsOffset(record);
+        int count = buf.getShort(pos) & 0xFFFF;
+        pos += 2;
+        for (int i = 0; i < count; i++) pos = skipString(pos);
+        return pos;
+    }
+
+    private int skipString(int pos) {
+        return pos + 1 + (buf.get(pos) & 0xFF);
+    }
+
+    private String string(int pos) {
+        byte[] bytes = new byte[buf.get(pos) & 0xFF];
+        buf.get(pos + 1, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
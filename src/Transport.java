@@ -0,0 +1,24 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+//Datagram delivery under Host, Switch and Router
+//
+//UdpTransport uses a real socket per node, MemoryTransport lets the nodes of a whole topology
+//run in one JVM (see Simulator). Either way delivery is best effort, like UDP: a datagram that
+//does not fit in the receiver's queue is dropped. Safe to use from several threads.
+public interface Transport extends Closeable {
+
+    //Sends the bytes between position and limit to the target. The buffer position is left
+    //unchanged so the same frame can go out again. Returns false if it was dropped locally.
+    boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+
+    //Receives one datagram into dst (flipped, ready to read) and returns the sender, waiting at
+    //most timeoutMs for one to arrive: 0 does not wait, a negative timeout waits forever.
+    //Returns null if nothing arrived. A datagram bigger than the room left in dst is truncated.
+    InetSocketAddress receive(ByteBuffer dst, long timeoutMs) throws IOException;
+
+    //Address other nodes send to
+    InetSocketAddress getLocalAddress();
+}
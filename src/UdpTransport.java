@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+//Transport over a non-blocking UDP socket bound to the node's port
+//Each receiving thread waits on a selector of its own, whichever thread wins the receive gets the datagram.
+//With reusePort several transports can bind the same port (SO_REUSEPORT): the kernel then spreads
+//the senders over them, all datagrams from one sender going to the same transport. Any other
+//process of the same user binding the port that way gets a share too, so a node started twice
+//splits its traffic instead of failing to bind.
+public class UdpTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress localAddress;
+    private final ThreadLocal<Selector> selectors = new ThreadLocal<>();
+
+    public UdpTransport(InetSocketAddress localAddress) throws IOException {
+        this(localAddress, false);
+    }
+
+    public UdpTransport(InetSocketAddress localAddress, boolean reusePort) throws IOException {
+        this.localAddress = localAddress;
+        this.channel = DatagramChannel.open();
+        if (reusePort) {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.close();
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            this.channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        this.channel.bind(new InetSocketAddress(localAddress.getPort()));
+        this.channel.configureBlocking(false);
+    }
+
+    @Override
+    public boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        int position = datagram.position();
+        int sent = channel.send(datagram, target);
+        datagram.position(position);
+        // Nothing is sent when the socket buffer is full
+        return sent > 0 || !datagram.hasRemaining();
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer dst, long timeoutMs) throws IOException {
+        InetSocketAddress from = (InetSocketAddress) channel.receive(dst);
+        if (from == null) {
+            if (timeoutMs == 0) return null;
+            Selector selector = selector();
+            selector.select(Math.max(0, timeoutMs));
+            selector.selectedKeys().clear();
+            from = (InetSocketAddress) channel.receive(dst);
+            if (from == null) return null;
+        }
+        dst.flip();
+        return from;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Selector selector() throws IOException {
+        Selector selector = selectors.get();
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            selectors.set(selector);
+        }
+        return selector;
+    }
+}